@@ -0,0 +1,169 @@
+package com.codeschmoof.android.timelapse.api;
+
+import android.util.Log;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds a camera by racing an SSDP search against direct probes of the
+ * devices remembered in a {@link DiscoveryCache} whose max-age has not passed.
+ * <p/>
+ * On the camera's own access point the camera sits at the same address every
+ * time, so asking it directly usually answers long before SSDP does. Each
+ * remembered device is probed twice: its device description is fetched again,
+ * and its camera endpoint is asked for getApplicationInfo. The first valid
+ * device wins; the search is cancelled and the remaining probes are ignored.
+ * Note that an answering endpoint proves the address, not the identity: a
+ * different camera at the same hotspot address is reported with the
+ * remembered description.
+ */
+public class DirectProbeDiscovery {
+
+    private static final String TAG = DirectProbeDiscovery.class.getSimpleName();
+
+    private static final int PROBE_THREADS = 4;
+
+    private final SimpleSsdpClient mSsdpClient;
+    private final DiscoveryCache mCache;
+
+    /**
+     * Constructor
+     *
+     * @param ssdpClient client used for the SSDP search
+     * @param cache remembered devices, already loaded
+     */
+    public DirectProbeDiscovery(SimpleSsdpClient ssdpClient,
+            DiscoveryCache cache) {
+        if (ssdpClient == null || cache == null) {
+            throw new NullPointerException("ssdpClient or cache is null.");
+        }
+        mSsdpClient = ssdpClient;
+        mCache = cache;
+    }
+
+    /**
+     * Starts the race. Cancelling the returned future stops the search.
+     *
+     * @return future of the first device found, or of null if neither the
+     *         search nor any probe found one
+     */
+    public ListenableFuture<ServerDevice> discover() {
+        final SettableFuture<ServerDevice> result = SettableFuture.create();
+        final List<DiscoveryCache.Entry> entries = mCache.getFreshEntries();
+        final AtomicInteger remaining = new AtomicInteger(1 + 2 * entries.size());
+        final ExecutorService probePool = Executors
+                .newFixedThreadPool(PROBE_THREADS);
+
+        // SSDP search
+        final ListenableFuture<List<ServerDevice>> search = mSsdpClient
+                .search(SimpleSsdpClient.SearchCondition.firstDevices(1));
+        search.addListener(new Runnable() {
+            @Override
+            public void run() {
+                ServerDevice device = null;
+                try {
+                    List<ServerDevice> devices = search.get();
+                    if (!devices.isEmpty()) {
+                        device = devices.get(0);
+                    }
+                } catch (ExecutionException e) {
+                    Log.d(TAG, "discover() search failed: " + e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    // cancelled after a probe won
+                }
+                report(result, remaining, device, "search");
+            }
+        }, MoreExecutors.sameThreadExecutor());
+
+        // Direct probes
+        for (final DiscoveryCache.Entry entry : entries) {
+            probePool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    report(result, remaining, probeDescription(entry),
+                            "description");
+                }
+            });
+            probePool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    report(result, remaining, probeEndpoint(entry), "endpoint");
+                }
+            });
+        }
+        probePool.shutdown();
+
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                search.cancel(false);
+                probePool.shutdownNow();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return result;
+    }
+
+    // Completes the race with the first device, or with null after the last
+    // attempt failed.
+    private static void report(SettableFuture<ServerDevice> result,
+            AtomicInteger remaining, ServerDevice device, String source) {
+        if (device != null) {
+            if (result.set(device)) {
+                Log.i(TAG, "discover() won by " + source + ": "
+                        + device.getUDN());
+            }
+        } else if (remaining.decrementAndGet() == 0) {
+            result.set(null);
+        }
+    }
+
+    // Fetches the remembered device description again. A miss keeps the entry
+    // for the next time while it's fresh.
+    private ServerDevice probeDescription(DiscoveryCache.Entry entry) {
+        if (Thread.currentThread().isInterrupted()) {
+            return null;
+        }
+        ServerDevice device = ServerDevice.fetch(entry.getDevice().getDDUrl(),
+                entry.getDevice());
+        if (device == null || !device.hasApiService("camera")) {
+            return null;
+        }
+        mCache.put(entry.getKey(), device, entry.getMaxAge());
+        mCache.save();
+        return device;
+    }
+
+    // Calls getApplicationInfo on the remembered camera endpoint.
+    private ServerDevice probeEndpoint(DiscoveryCache.Entry entry) {
+        if (Thread.currentThread().isInterrupted()
+                || !entry.getDevice().hasApiService("camera")) {
+            return null;
+        }
+        try {
+            JSONObject replyJson = new SimpleRemoteApi(entry.getDevice())
+                    .getApplicationInfo();
+            if (replyJson.has("result")) {
+                // seen again, so it stays fresh
+                mCache.put(entry.getKey(), entry.getDevice(), entry.getMaxAge());
+                mCache.save();
+                return entry.getDevice();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "probeEndpoint() no answer: " + entry.getKey());
+        }
+        return null;
+    }
+}
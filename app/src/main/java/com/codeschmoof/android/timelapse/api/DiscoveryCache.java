@@ -0,0 +1,307 @@
+package com.codeschmoof.android.timelapse.api;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent cache of discovered devices.
+ * <p/>
+ * Devices are keyed by their UDN (or the USN of the SSDP reply if the
+ * description has none) and stay fresh for the max-age announced in the
+ * CACHE-CONTROL header of the reply. Fresh entries can be asked for directly
+ * (see {@link DirectProbeDiscovery}), so a full SSDP search is only needed
+ * when the cache misses or is stale. Expired entries are dropped when the
+ * cache is saved.
+ */
+public class DiscoveryCache {
+
+    private static final String TAG = DiscoveryCache.class.getSimpleName();
+
+    /** max-age used when the reply has no usable CACHE-CONTROL header */
+    public static final int DEFAULT_MAX_AGE = 1800; // [sec]
+
+    /**
+     * A cached device.
+     */
+    public static class Entry {
+        private final String mKey;
+        private final ServerDevice mDevice;
+        private final int mMaxAge;
+        private final long mSeenAt;
+
+        private Entry(String key, ServerDevice device, int maxAge, long seenAt) {
+            mKey = key;
+            mDevice = device;
+            mMaxAge = maxAge;
+            mSeenAt = seenAt;
+        }
+
+        /**
+         * Returns the cache key (UDN or USN).
+         *
+         * @return key
+         */
+        public String getKey() {
+            return mKey;
+        }
+
+        /**
+         * Returns the cached device.
+         *
+         * @return device
+         */
+        public ServerDevice getDevice() {
+            return mDevice;
+        }
+
+        /**
+         * Returns the max-age of the entry.
+         *
+         * @return seconds
+         */
+        public int getMaxAge() {
+            return mMaxAge;
+        }
+
+        /**
+         * Returns the wall clock time the device was last seen.
+         *
+         * @return milliseconds since the epoch
+         */
+        public long getSeenAt() {
+            return mSeenAt;
+        }
+
+        /**
+         * Checks to see whether the entry is still within its max-age.
+         *
+         * @param now wall clock time in milliseconds since the epoch
+         * @return true if fresh
+         */
+        public boolean isFresh(long now) {
+            return now >= mSeenAt && now - mSeenAt < mMaxAge * 1000L;
+        }
+    }
+
+    private final File mFile;
+    private final Map<String, Entry> mEntries = new LinkedHashMap<String, Entry>();
+
+    /**
+     * Constructor
+     *
+     * @param file file the cache is stored in
+     */
+    public DiscoveryCache(File file) {
+        if (file == null) {
+            throw new NullPointerException("file is null.");
+        }
+        mFile = file;
+    }
+
+    /**
+     * Reads the cache file. Entries already in memory are newer and take
+     * precedence. A missing or broken file is ignored.
+     */
+    public synchronized void load() {
+        String content;
+        try {
+            content = readFile(mFile);
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException e) {
+            Log.w(TAG, "load() read failed.", e);
+            return;
+        }
+        Map<String, Entry> loaded = new LinkedHashMap<String, Entry>();
+        try {
+            JSONArray entries = new JSONArray(content);
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject entry = entries.getJSONObject(i);
+                ServerDevice device = ServerDevice.fromJson(entry
+                        .getJSONObject("device"));
+                String key = entry.getString("key");
+                loaded.put(key, new Entry(key, device, entry.getInt("maxAge"),
+                        entry.getLong("seenAt")));
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "load() broken cache file.", e);
+            return;
+        }
+        for (Entry entry : loaded.values()) {
+            if (!mEntries.containsKey(entry.mKey)) {
+                mEntries.put(entry.mKey, entry);
+            }
+        }
+    }
+
+    /**
+     * Writes the cache file. Entries past their max-age are dropped.
+     */
+    public synchronized void save() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Entry> i = mEntries.values().iterator(); i.hasNext();) {
+            if (!i.next().isFresh(now)) {
+                i.remove();
+            }
+        }
+        String content;
+        try {
+            JSONArray entries = new JSONArray();
+            for (Entry entry : mEntries.values()) {
+                JSONObject json = new JSONObject();
+                json.put("key", entry.mKey);
+                json.put("maxAge", entry.mMaxAge);
+                json.put("seenAt", entry.mSeenAt);
+                json.put("device", entry.mDevice.toJson());
+                entries.put(json);
+            }
+            content = entries.toString();
+        } catch (JSONException e) {
+            Log.e(TAG, "save() serialization failed.", e);
+            return;
+        }
+        // Write a temporary file first so that a crash never leaves a
+        // truncated cache behind.
+        File tmp = new File(mFile.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            writer.write(content);
+            writer.close();
+            writer = null;
+            if (!tmp.renameTo(mFile)) {
+                Log.w(TAG, "save() rename failed.");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "save() write failed.", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "IOException while closing Writer");
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores a device that has just been seen.
+     *
+     * @param usn USN of the SSDP message, used if the device has no UDN
+     * @param device device
+     * @param maxAge max-age in seconds
+     */
+    public synchronized void put(String usn, ServerDevice device, int maxAge) {
+        String key = device.getUDN() != null ? device.getUDN() : usn;
+        if (key == null) {
+            return;
+        }
+        mEntries.put(key, new Entry(key, device, maxAge,
+                System.currentTimeMillis()));
+    }
+
+    /**
+     * Removes an entry.
+     *
+     * @param key UDN or USN
+     */
+    public synchronized void remove(String key) {
+        mEntries.remove(key);
+    }
+
+    /**
+     * Returns all entries.
+     *
+     * @return a list of entries
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(mEntries.values());
+    }
+
+    /**
+     * Returns the cached device whose description is at the URL, e.g. to make
+     * a conditional request for it.
+     *
+     * @param ddUrl URL of the device description
+     * @return device or null
+     */
+    public synchronized ServerDevice findDevice(String ddUrl) {
+        for (Entry entry : mEntries.values()) {
+            if (entry.mDevice.getDDUrl().equals(ddUrl)) {
+                return entry.mDevice;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the entry of a device, e.g. to learn the max-age it was last
+     * announced with.
+     *
+     * @param device device
+     * @return entry or null
+     */
+    public synchronized Entry findEntry(ServerDevice device) {
+        if (device.getUDN() != null) {
+            return mEntries.get(device.getUDN());
+        }
+        for (Entry entry : mEntries.values()) {
+            if (entry.mDevice.getDDUrl().equals(device.getDDUrl())) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the entries within their max-age.
+     *
+     * @return a list of fresh entries
+     */
+    public synchronized List<Entry> getFreshEntries() {
+        long now = System.currentTimeMillis();
+        List<Entry> fresh = new ArrayList<Entry>();
+        for (Entry entry : mEntries.values()) {
+            if (entry.isFresh(now)) {
+                fresh.add(entry);
+            }
+        }
+        return fresh;
+    }
+
+    // Reads a whole UTF-8 text file.
+    private static String readFile(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            StringBuilder content = new StringBuilder();
+            char[] buffer = new char[1024];
+            int length;
+            while ((length = reader.read(buffer)) != -1) {
+                content.append(buffer, 0, length);
+            }
+            return content.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -5,29 +5,48 @@
 package com.codeschmoof.android.timelapse.api;
 
 import android.util.Log;
+import android.util.Xml;
 
 import com.codeschmoof.android.timelapse.api.utils.SimpleHttpClient;
-import com.codeschmoof.android.timelapse.api.utils.XmlElement;
-
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
- * A server device description class.
+ * A server device description class. Instances are immutable, so they can be
+ * shared between threads.
  */
 public class ServerDevice {
 
     private static final String TAG = ServerDevice.class.getSimpleName();
 
+    // Version of the format of writeTo()
+    private static final int BINARY_VERSION = 1;
+
     /**
      * Camera Remote API service (category). For example, "camera", "guide" and
      * so on. "Action List URL" is API request target URL of each service.
      */
     public static class ApiService {
-        private String mName;
-        private String mActionListUrl;
+        private final String mName;
+        private final String mActionListUrl;
+        private final String mEndpointUrl;
 
         /**
          * Constructor
@@ -38,6 +57,13 @@ public class ServerDevice {
         public ApiService(String name, String actionListUrl) {
             mName = name;
             mActionListUrl = actionListUrl;
+            if (actionListUrl == null || name == null) {
+                mEndpointUrl = null;
+            } else if (actionListUrl.endsWith("/")) {
+                mEndpointUrl = actionListUrl + name;
+            } else {
+                mEndpointUrl = actionListUrl + "/" + name;
+            }
         }
 
         /**
@@ -49,15 +75,6 @@ public class ServerDevice {
             return mName;
         }
 
-        /**
-         * Sets a category name.
-         * 
-         * @param name category name
-         */
-        public void setName(String name) {
-            this.mName = name;
-        }
-
         /**
          * Returns the action list URL of the category.
          * 
@@ -67,42 +84,52 @@ public class ServerDevice {
             return mActionListUrl;
         }
 
-        /**
-         * Sets an action list URL of the category.
-         * 
-         * @param actionListUrl action list URL of the category
-         */
-        public void setActionListUrl(String actionListUrl) {
-            this.mActionListUrl = actionListUrl;
-        }
-
         /**
          * Returns the endpoint URL of the category.
          * 
          * @return endpoint URL
          */
         public String getEndpointUrl() {
-            String url = null;
-            if (mActionListUrl == null || mName == null) {
-                url = null;
-            } else if (mActionListUrl.endsWith("/")) {
-                url = mActionListUrl + mName;
-            } else {
-                url = mActionListUrl + "/" + mName;
-            }
-            return url;
+            return mEndpointUrl;
         }
     }
 
-    private String mDDUrl;
-    private String mFriendlyName;
-    private String mModelName;
-    private String mUDN;
-    private String mIconUrl;
-    private List<ApiService> mApiServices;
-
-    private ServerDevice() {
-        mApiServices = new ArrayList<ApiService>();
+    private final String mDDUrl;
+    private final String mFriendlyName;
+    private final String mModelName;
+    private final String mUDN;
+    private final String mIconUrl;
+    private final String mIpAddress;
+    private final List<ApiService> mApiServices;
+    private final Map<String, ApiService> mApiServiceMap;
+    // Validators of the description response, for conditional requests
+    private final String mETag;
+    private final String mLastModified;
+    private final String mContentHash;
+
+    private ServerDevice(String ddUrl, String friendlyName, String modelName,
+            String udn, String iconUrl, List<ApiService> apiServices,
+            String eTag, String lastModified, String contentHash) {
+        mDDUrl = ddUrl;
+        mFriendlyName = friendlyName;
+        mModelName = modelName;
+        mUDN = udn;
+        mIconUrl = iconUrl;
+        mIpAddress = ddUrl != null ? toHost(ddUrl) : null;
+        mApiServices = Collections.unmodifiableList(new ArrayList<ApiService>(
+                apiServices));
+        // The first service of a name wins, as a scan would find it.
+        Map<String, ApiService> map = new HashMap<String, ApiService>();
+        for (ApiService apiService : apiServices) {
+            if (apiService.getName() != null
+                    && !map.containsKey(apiService.getName())) {
+                map.put(apiService.getName(), apiService);
+            }
+        }
+        mApiServiceMap = map;
+        mETag = eTag;
+        mLastModified = lastModified;
+        mContentHash = contentHash;
     }
 
     /**
@@ -156,11 +183,7 @@ public class ServerDevice {
      * @return
      */
     public String getIpAddres() {
-        String ip = null;
-        if (mDDUrl != null) {
-            return toHost(mDDUrl);
-        }
-        return ip;
+        return mIpAddress;
     }
 
     /**
@@ -169,7 +192,7 @@ public class ServerDevice {
      * @return a list of categories
      */
     public List<ApiService> getApiServices() {
-        return Collections.unmodifiableList(mApiServices);
+        return mApiServices;
     }
 
     /**
@@ -182,12 +205,7 @@ public class ServerDevice {
         if (serviceName == null) {
             return false;
         }
-        for (ApiService apiService : mApiServices) {
-            if (serviceName.equals(apiService.getName())) {
-                return true;
-            }
-        }
-        return false;
+        return mApiServiceMap.containsKey(serviceName);
     }
 
     /**
@@ -200,90 +218,347 @@ public class ServerDevice {
         if (serviceName == null) {
             return null;
         }
+        return mApiServiceMap.get(serviceName);
+    }
+
+    /**
+     * Writes this device in a compact binary format, to be read back by
+     * {@link #readFrom(DataInput)}. The format starts with a version byte.
+     * 
+     * @param out destination
+     * @throws IOException if writing fails
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        String[] fields = {
+                mDDUrl, mFriendlyName, mModelName, mUDN, mIconUrl, mETag,
+                mLastModified, mContentHash
+        };
+        // One bit per non-null field, then the fields.
+        int present = 0;
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] != null) {
+                present |= 1 << i;
+            }
+        }
+        out.writeByte(BINARY_VERSION);
+        out.writeByte(present);
+        for (String field : fields) {
+            if (field != null) {
+                out.writeUTF(field);
+            }
+        }
+        out.writeShort(mApiServices.size());
         for (ApiService apiService : mApiServices) {
-            if (serviceName.equals(apiService.getName())) {
-                return apiService;
+            out.writeUTF(apiService.getName() != null ? apiService.getName()
+                    : "");
+            out.writeUTF(apiService.getActionListUrl() != null ? apiService
+                    .getActionListUrl() : "");
+        }
+    }
+
+    /**
+     * Reads a device written by {@link #writeTo(DataOutput)}.
+     * 
+     * @param in source
+     * @return ServerDevice instance
+     * @throws IOException if reading fails, or the data has an unknown
+     *             version or no description URL
+     */
+    public static ServerDevice readFrom(DataInput in) throws IOException {
+        int version = in.readUnsignedByte();
+        if (version != BINARY_VERSION) {
+            throw new IOException("Unsupported version: " + version);
+        }
+        int present = in.readUnsignedByte();
+        String[] fields = new String[8];
+        for (int i = 0; i < fields.length; i++) {
+            if ((present & (1 << i)) != 0) {
+                fields[i] = in.readUTF();
             }
         }
-        return null;
+        if (fields[0] == null) {
+            throw new IOException("ddUrl is missing.");
+        }
+        int count = in.readUnsignedShort();
+        List<ApiService> apiServices = new ArrayList<ApiService>(count);
+        for (int i = 0; i < count; i++) {
+            apiServices.add(new ApiService(in.readUTF(), in.readUTF()));
+        }
+        return new ServerDevice(fields[0], fields[1], fields[2], fields[3],
+                fields[4], apiServices, fields[5], fields[6], fields[7]);
     }
 
-    // Adds a ApiService object.
-    private void addApiService(String name, String actionUrl) {
-        ApiService service = new ApiService(name, actionUrl);
-        mApiServices.add(service);
+    // Serializes this object for DiscoveryCache.
+    JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("ddUrl", mDDUrl);
+        json.put("friendlyName", mFriendlyName);
+        json.put("modelName", mModelName);
+        json.put("udn", mUDN);
+        json.put("iconUrl", mIconUrl);
+        JSONArray services = new JSONArray();
+        for (ApiService apiService : mApiServices) {
+            JSONObject service = new JSONObject();
+            service.put("name", apiService.getName());
+            service.put("actionListUrl", apiService.getActionListUrl());
+            services.put(service);
+        }
+        json.put("apiServices", services);
+        json.put("eTag", mETag);
+        json.put("lastModified", mLastModified);
+        json.put("contentHash", mContentHash);
+        return json;
+    }
+
+    // Restores an object serialized by toJson().
+    static ServerDevice fromJson(JSONObject json) throws JSONException {
+        List<ApiService> apiServices = new ArrayList<ApiService>();
+        JSONArray services = json.getJSONArray("apiServices");
+        for (int i = 0; i < services.length(); i++) {
+            JSONObject service = services.getJSONObject(i);
+            apiServices.add(new ApiService(service.getString("name"),
+                    service.getString("actionListUrl")));
+        }
+        return new ServerDevice(json.getString("ddUrl"), json.optString(
+                "friendlyName", null), json.optString("modelName", null),
+                json.optString("udn", null), json.optString("iconUrl", null),
+                apiServices, json.optString("eTag", null), json.optString(
+                        "lastModified", null), json.optString("contentHash",
+                        null));
     }
 
     /**
-     * Fetches device description xml file from server and parses it.
+     * Fetches device description xml file from server and parses it while
+     * it's received.
      * 
      * @param ddUrl URL of device description xml.
      * @return ServerDevice instance
      */
     public static ServerDevice fetch(String ddUrl) {
+        return fetch(ddUrl, null);
+    }
+
+    /**
+     * Fetches device description xml file from server unless it's unchanged
+     * since the given device was fetched. The request is conditional on the
+     * ETag or Last-Modified of the previous response; if the server sent
+     * neither, the description is downloaded and compared by a content hash,
+     * which still saves parsing it.
+     * 
+     * @param ddUrl URL of device description xml.
+     * @param previous device previously fetched from the URL, e.g. restored
+     *            from a cache, or null
+     * @return the previous instance if unchanged, or a new ServerDevice
+     *         instance
+     */
+    public static ServerDevice fetch(String ddUrl, ServerDevice previous) {
         if (ddUrl == null) {
             throw new NullPointerException("ddUrl is null.");
         }
+        if (previous != null && !ddUrl.equals(previous.mDDUrl)) {
+            previous = null;
+        }
 
-        String ddXml = "";
+        InputStream ddStream = null;
+        ServerDevice device;
         try {
-            ddXml = SimpleHttpClient.httpGet(ddUrl);
+            SimpleHttpClient.ConditionalResponse response = SimpleHttpClient
+                    .httpGetConditional(ddUrl, previous != null ? previous.mETag
+                            : null, previous != null ? previous.mLastModified
+                            : null);
+            if (response.isNotModified()) {
+                Log.d(TAG, "fetch () not modified.");
+                return previous;
+            }
+            ddStream = response.getBody();
             Log.d(TAG, "fetch () httpGet done.");
+
+            String contentHash = null;
+            if (response.getETag() == null
+                    && response.getLastModified() == null) {
+                // No validators, the content has to tell.
+                byte[] content = ByteStreams.toByteArray(ddStream);
+                contentHash = Hashing.sha1().hashBytes(content).toString();
+                if (previous != null
+                        && contentHash.equals(previous.mContentHash)) {
+                    Log.d(TAG, "fetch () content unchanged.");
+                    return previous;
+                }
+                ddStream.close();
+                ddStream = new ByteArrayInputStream(content);
+            }
+
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(ddStream, null);
+            device = parseDescription(parser, ddUrl, response.getETag(),
+                    response.getLastModified(), contentHash);
         } catch (IOException e) {
             Log.e(TAG, "fetch: IOException.", e);
             return null;
-        }/*
-          * catch (Exception e) { Log.e(TAG, "fetch: Exception.", e); return
-          * null; }
-          */
-        XmlElement rootElement = XmlElement.parse(ddXml);
-
-        // "root"
-        ServerDevice device = null;
-        if ("root".equals(rootElement.getTagName())) {
-            device = new ServerDevice();
-            device.mDDUrl = ddUrl;
-
-            // "device"
-            XmlElement deviceElement = rootElement.findChild("device");
-            device.mFriendlyName = deviceElement.findChild("friendlyName")
-                    .getValue();
-            device.mModelName = deviceElement.findChild("modelName").getValue();
-            device.mUDN = deviceElement.findChild("UDN").getValue();
-
-            // "iconList"
-            XmlElement iconListElement = deviceElement.findChild("iconList");
-            List<XmlElement> iconElements = iconListElement
-                    .findChildren("icon");
-            for (XmlElement iconElement : iconElements) {
-                // Choose png icon to show Android UI.
-                if ("image/png".equals(iconElement.findChild("mimetype")
-                        .getValue())) {
-                    String _uri = iconElement.findChild("url").getValue();
-                    String hostUrl = toSchemeAndHost(ddUrl);
-                    device.mIconUrl = hostUrl + _uri;
+        } catch (XmlPullParserException e) {
+            Log.e(TAG, "fetch: XmlPullParserException.");
+            return null;
+        } finally {
+            if (ddStream != null) {
+                try {
+                    ddStream.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "IOException while closing InputStream");
                 }
             }
-
-            // "av:X_ScalarWebAPI_DeviceInfo"
-            XmlElement wApiElement = deviceElement
-                    .findChild("X_ScalarWebAPI_DeviceInfo");
-            XmlElement wApiServiceListElement = wApiElement
-                    .findChild("X_ScalarWebAPI_ServiceList");
-            List<XmlElement> wApiServiceElements = wApiServiceListElement
-                    .findChildren("X_ScalarWebAPI_Service");
-            for (XmlElement wApiServiceElement : wApiServiceElements) {
-                String serviceName = wApiServiceElement.findChild(
-                        "X_ScalarWebAPI_ServiceType").getValue();
-                String actionUrl = wApiServiceElement.findChild(
-                        "X_ScalarWebAPI_ActionList_URL").getValue();
-                device.addApiService(serviceName, actionUrl);
-            }
         }
         Log.d(TAG, "fetch () parsing XML done.");
         return device;
     }
 
+    // Pulls the values of the device description without building a tree:
+    //
+    // root/device/{friendlyName, modelName, UDN}
+    // root/device/iconList/icon/{mimetype, url}
+    // root/device/X_ScalarWebAPI_DeviceInfo/X_ScalarWebAPI_ServiceList/
+    // X_ScalarWebAPI_Service/{X_ScalarWebAPI_ServiceType,
+    // X_ScalarWebAPI_ActionList_URL}
+    //
+    // Reading stops when the service list is closed and the icon list has
+    // been read, or when the device element is closed.
+    private static ServerDevice parseDescription(XmlPullParser parser,
+            String ddUrl, String eTag, String lastModified, String contentHash)
+            throws XmlPullParserException, IOException {
+        int eventType = parser.next();
+        while (eventType != XmlPullParser.START_TAG
+                && eventType != XmlPullParser.END_DOCUMENT) {
+            eventType = parser.next();
+        }
+        if (eventType != XmlPullParser.START_TAG
+                || !"root".equals(parser.getName())) {
+            return null;
+        }
+        String friendlyName = null;
+        String modelName = null;
+        String udn = null;
+        String deviceIconUrl = null;
+        List<ApiService> apiServices = new ArrayList<ApiService>();
+
+        boolean inDevice = false;
+        boolean deviceRead = false;
+        boolean inIconList = false;
+        boolean iconListRead = false;
+        boolean inDeviceInfo = false;
+        boolean inServiceList = false;
+        String iconMimeType = null;
+        String iconUrl = null;
+        String serviceName = null;
+        String actionUrl = null;
+
+        PARSE: while (true) {
+            eventType = parser.next();
+            if (eventType == XmlPullParser.END_DOCUMENT) {
+                break;
+            }
+            if (eventType != XmlPullParser.START_TAG
+                    && eventType != XmlPullParser.END_TAG) {
+                continue;
+            }
+            boolean start = eventType == XmlPullParser.START_TAG;
+            String name = parser.getName();
+            switch (parser.getDepth()) {
+                case 2:
+                    if ("device".equals(name)) {
+                        if (start && !deviceRead) {
+                            inDevice = true;
+                        } else if (!start && inDevice) {
+                            break PARSE;
+                        }
+                    }
+                    break;
+                case 3:
+                    if (!inDevice) {
+                        break;
+                    }
+                    if ("iconList".equals(name)) {
+                        inIconList = start;
+                        iconListRead |= !start;
+                    } else if ("X_ScalarWebAPI_DeviceInfo".equals(name)) {
+                        inDeviceInfo = start;
+                    } else if (!start) {
+                        break;
+                    } else if ("friendlyName".equals(name)) {
+                        friendlyName = first(friendlyName,
+                                parser.nextText());
+                    } else if ("modelName".equals(name)) {
+                        modelName = first(modelName,
+                                parser.nextText());
+                    } else if ("UDN".equals(name)) {
+                        udn = first(udn, parser.nextText());
+                    }
+                    break;
+                case 4:
+                    if (inIconList && "icon".equals(name)) {
+                        if (start) {
+                            iconMimeType = null;
+                            iconUrl = null;
+                        } else if ("image/png".equals(iconMimeType)) {
+                            // Choose png icon to show Android UI.
+                            deviceIconUrl = toSchemeAndHost(ddUrl)
+                                    + (iconUrl != null ? iconUrl : "");
+                        }
+                    } else if (inDeviceInfo
+                            && "X_ScalarWebAPI_ServiceList".equals(name)) {
+                        inServiceList = start;
+                        if (!start && iconListRead) {
+                            break PARSE;
+                        }
+                    }
+                    break;
+                case 5:
+                    if (inIconList && start) {
+                        if ("mimetype".equals(name)) {
+                            iconMimeType = first(iconMimeType,
+                                    parser.nextText());
+                        } else if ("url".equals(name)) {
+                            iconUrl = first(iconUrl, parser.nextText());
+                        }
+                    } else if (inServiceList
+                            && "X_ScalarWebAPI_Service".equals(name)) {
+                        if (start) {
+                            serviceName = null;
+                            actionUrl = null;
+                        } else {
+                            apiServices.add(new ApiService(
+                                    serviceName != null ? serviceName : "",
+                                    actionUrl != null ? actionUrl : ""));
+                        }
+                    }
+                    break;
+                case 6:
+                    if (inServiceList && start) {
+                        if ("X_ScalarWebAPI_ServiceType".equals(name)) {
+                            serviceName = first(serviceName, parser.nextText());
+                        } else if ("X_ScalarWebAPI_ActionList_URL".equals(name)) {
+                            actionUrl = first(actionUrl, parser.nextText());
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (!start && inDevice && parser.getDepth() == 2) {
+                deviceRead = true;
+            }
+        }
+
+        // Missing values are empty as they were with XmlElement.
+        return new ServerDevice(ddUrl, friendlyName != null ? friendlyName
+                : "", modelName != null ? modelName : "", udn != null ? udn
+                : "", deviceIconUrl, apiServices, eTag, lastModified,
+                contentHash);
+    }
+
+    // Returns the value that was read first.
+    private static String first(String current, String value) {
+        return current != null ? current : value;
+    }
+
     private static String toSchemeAndHost(String url) {
         int i = url.indexOf("://"); // http:// or https://
         if (i == -1)
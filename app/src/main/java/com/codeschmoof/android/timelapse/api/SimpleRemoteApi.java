@@ -13,7 +13,6 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
-import java.util.List;
 
 /**
  * Simple Camera Remote API wrapper class. (JSON based API <--> Java API)
@@ -42,15 +41,13 @@ public class SimpleRemoteApi {
         mRequestId = 1;
     }
 
-    // Retrieves Action List URL from Server information.
-    private String findActionListUrl(String service) {
-        List<ApiService> services = mTargetServer.getApiServices();
-        for (ServerDevice.ApiService apiService : services) {
-            if (apiService.getName().equals(service)) {
-                return apiService.getActionListUrl();
-            }
+    // Retrieves the endpoint URL of a service from Server information.
+    private String findEndpointUrl(String service) {
+        ApiService apiService = mTargetServer.getApiService(service);
+        if (apiService == null || apiService.getEndpointUrl() == null) {
+            throw new IllegalStateException("actionUrl not found.");
         }
-        throw new IllegalStateException("actionUrl not found.");
+        return apiService.getEndpointUrl();
     }
 
     // Request ID. Counted up after calling.
@@ -90,7 +87,7 @@ public class SimpleRemoteApi {
                     .put("params", new JSONArray())
                     .put("id", id())
                     .put("version", "1.0");
-            String url = findActionListUrl(service) + "/" + service;
+            String url = findEndpointUrl(service);
 
             log("Request:  " + requestJson.toString());
             String responseJson = SimpleHttpClient.httpPost(url,
@@ -125,7 +122,7 @@ public class SimpleRemoteApi {
                     .put("params", new JSONArray())
                     .put("id", id())
                     .put("version", "1.0");
-            String url = findActionListUrl(service) + "/" + service;
+            String url = findEndpointUrl(service);
 
             log("Request:  " + requestJson.toString());
             String responseJson = SimpleHttpClient.httpPost(url,
@@ -160,7 +157,7 @@ public class SimpleRemoteApi {
                     .put("params", new JSONArray())
                     .put("id", id())
                     .put("version", "1.0");
-            String url = findActionListUrl(service) + "/" + service;
+            String url = findEndpointUrl(service);
 
             log("Request:  " + requestJson.toString());
             String responseJson = SimpleHttpClient.httpPost(url,
@@ -196,7 +193,7 @@ public class SimpleRemoteApi {
                     .put("params", new JSONArray().put(shootMode))
                     .put("id", id())
                     .put("version", "1.0");
-            String url = findActionListUrl(service) + "/" + service;
+            String url = findEndpointUrl(service);
 
             log("Request:  " + requestJson.toString());
             String responseJson = SimpleHttpClient.httpPost(url,
@@ -231,7 +228,7 @@ public class SimpleRemoteApi {
                     .put("params", new JSONArray())
                     .put("id", id())
                     .put("version", "1.0");
-            String url = findActionListUrl(service) + "/" + service;
+            String url = findEndpointUrl(service);
 
             log("Request:  " + requestJson.toString());
             String responseJson = SimpleHttpClient.httpPost(url,
@@ -266,7 +263,7 @@ public class SimpleRemoteApi {
                     .put("params", new JSONArray())
                     .put("id", id())
                     .put("version", "1.0");
-            String url = findActionListUrl(service) + "/" + service;
+            String url = findEndpointUrl(service);
 
             log("Request:  " + requestJson.toString());
             String responseJson = SimpleHttpClient.httpPost(url,
@@ -301,7 +298,7 @@ public class SimpleRemoteApi {
                     .put("params", new JSONArray())
                     .put("id", id())
                     .put("version", "1.0");
-            String url = findActionListUrl(service) + "/" + service;
+            String url = findEndpointUrl(service);
 
             log("Request:  " + requestJson.toString());
             String responseJson = SimpleHttpClient.httpPost(url,
@@ -337,7 +334,7 @@ public class SimpleRemoteApi {
                     .put("params", new JSONArray().put(shootMode))
                     .put("id", id())
                     .put("version", "1.0");
-            String url = findActionListUrl(service) + "/" + service;
+            String url = findEndpointUrl(service);
 
             log("Request:  " + requestJson.toString());
             String responseJson = SimpleHttpClient.httpPost(url,
@@ -372,7 +369,7 @@ public class SimpleRemoteApi {
                     .put("params", new JSONArray())
                     .put("id", id())
                     .put("version", "1.0");
-            String url = findActionListUrl(service) + "/" + service;
+            String url = findEndpointUrl(service);
 
             log("Request:  " + requestJson.toString());
             String responseJson = SimpleHttpClient.httpPost(url,
@@ -407,7 +404,7 @@ public class SimpleRemoteApi {
                     .put("params", new JSONArray())
                     .put("id", id())
                     .put("version", "1.0");
-            String url = findActionListUrl(service) + "/" + service;
+            String url = findEndpointUrl(service);
 
             log("Request:  " + requestJson.toString());
             String responseJson = SimpleHttpClient.httpPost(url,
@@ -442,7 +439,7 @@ public class SimpleRemoteApi {
                     .put("params", new JSONArray())
                     .put("id", id())
                     .put("version", "1.0");
-            String url = findActionListUrl(service) + "/" + service;
+            String url = findEndpointUrl(service);
 
             log("Request:  " + requestJson.toString());
             String responseJson = SimpleHttpClient.httpPost(url,
@@ -477,7 +474,7 @@ public class SimpleRemoteApi {
                     .put("params", new JSONArray())
                     .put("id", id())
                     .put("version", "1.0");
-            String url = findActionListUrl(service) + "/" + service;
+            String url = findEndpointUrl(service);
 
             log("Request:  " + requestJson.toString());
             String responseJson = SimpleHttpClient.httpPost(url,
@@ -512,7 +509,7 @@ public class SimpleRemoteApi {
                     .put("params", new JSONArray())
                     .put("id", id())
                     .put("version", "1.0");
-            String url = findActionListUrl(service) + "/" + service;
+            String url = findEndpointUrl(service);
 
             log("Request:  " + requestJson.toString());
             String responseJson = SimpleHttpClient.httpPost(url,
@@ -547,7 +544,7 @@ public class SimpleRemoteApi {
                     .put("params", new JSONArray())
                     .put("id", id())
                     .put("version", "1.0");
-            String url = findActionListUrl(service) + "/" + service;
+            String url = findEndpointUrl(service);
 
             log("Request:  " + requestJson.toString());
             String responseJson = SimpleHttpClient.httpPost(url,
@@ -582,7 +579,7 @@ public class SimpleRemoteApi {
                     .put("params", new JSONArray())
                     .put("id", id())
                     .put("version", "1.0");
-            String url = findActionListUrl(service) + "/" + service;
+            String url = findEndpointUrl(service);
 
             log("Request:  " + requestJson.toString());
             String responseJson = SimpleHttpClient.httpPost(url,
@@ -617,7 +614,7 @@ public class SimpleRemoteApi {
                     .put("params", new JSONArray())
                     .put("id", id())
                     .put("version", "1.0");
-            String url = findActionListUrl(service) + "/" + service;
+            String url = findEndpointUrl(service);
 
             log("Request:  " + requestJson.toString());
             String responseJson = SimpleHttpClient.httpPost(url,
@@ -652,7 +649,7 @@ public class SimpleRemoteApi {
                     .put("params", new JSONArray())
                     .put("id", id())
                     .put("version", "1.0");
-            String url = findActionListUrl(service) + "/" + service;
+            String url = findEndpointUrl(service);
 
             log("Request:  " + requestJson.toString());
             String responseJson = SimpleHttpClient.httpPost(url,
@@ -687,7 +684,7 @@ public class SimpleRemoteApi {
                     .put("params", new JSONArray().put(direction).put(movement))
                     .put("id", id())
                     .put("version", "1.0");
-            String url = findActionListUrl(service) + "/" + service;
+            String url = findEndpointUrl(service);
 
             log("Request:  " + requestJson.toString());
             String responseJson = SimpleHttpClient.httpPost(url,
@@ -721,7 +718,7 @@ public class SimpleRemoteApi {
             JSONObject requestJson = new JSONObject().put("method", "getEvent")
                     .put("params", new JSONArray().put(longPollingFlag))
                     .put("id", id()).put("version", "1.0");
-            String url = findActionListUrl(service) + "/" + service;
+            String url = findEndpointUrl(service);
             int longPollingTimeout = (longPollingFlag) ? 20000 : 8000; // msec
 
             log("Request:  " + requestJson.toString());
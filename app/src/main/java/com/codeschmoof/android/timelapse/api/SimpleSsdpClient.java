@@ -6,14 +6,28 @@ package com.codeschmoof.android.timelapse.api;
 
 import android.util.Log;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
 import java.io.IOException;
-import java.io.InterruptedIOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A SSDP client class for this sample application. This implementation keeps
@@ -25,17 +39,24 @@ public class SimpleSsdpClient {
 
     private final static int SSDP_RECEIVE_TIMEOUT = 10000; // msec
     private final static int PACKET_BUFFER_SIZE = 1024;
-    private final static int SSDP_PORT = 1900;
+    private final static int DD_FETCH_TIMEOUT = 15000; // msec
+    final static int SSDP_PORT = 1900;
     private final static int SSDP_MX = 1;
-    private final static String SSDP_ADDR = "239.255.255.250";
-    private final static String SSDP_ST = "urn:schemas-sony-com:service:ScalarWebAPI:1";
+    // Retransmits on an exponential schedule within the MX window.
+    private final static long[] RESEND_TIMES = {
+            0, 100, 300, 700
+    }; // msec
+    private final static String DEFAULT_INTERFACE = "default";
+    final static String SSDP_ADDR = "239.255.255.250";
+    final static String SSDP_ST = "urn:schemas-sony-com:service:ScalarWebAPI:1";
 
     /** Handler interface for SSDP search result. */
     public interface SearchResultHandler {
 
         /**
          * Called when API server device is found. Note that it's performed by
-         * non-UI thread.
+         * non-UI thread. The calls of all handlers are made one at a time and
+         * in order, without holding any lock of the client.
          * 
          * @param device API server device that is found by searching
          */
@@ -54,122 +75,311 @@ public class SimpleSsdpClient {
         public void onErrorFinished();
     }
 
-    private boolean mSearching = false;
+    /**
+     * Condition that completes a search before the receive timeout.
+     */
+    public static final class SearchCondition {
+        private final int mDeviceCount;
+        private final String mUdn;
+        private final long mIdleGap;
+
+        private SearchCondition(int deviceCount, String udn, long idleGap) {
+            mDeviceCount = deviceCount;
+            mUdn = udn;
+            mIdleGap = idleGap;
+        }
+
+        /**
+         * Completes the search as soon as the given number of devices is
+         * found.
+         * 
+         * @param count number of devices
+         * @return condition
+         */
+        public static SearchCondition firstDevices(int count) {
+            if (count < 1) {
+                throw new IllegalArgumentException("count < 1");
+            }
+            return new SearchCondition(count, null, 0);
+        }
+
+        /**
+         * Completes the search as soon as the device with the given UDN is
+         * found.
+         * 
+         * @param udn UDN of the expected device
+         * @return condition
+         */
+        public static SearchCondition device(String udn) {
+            if (udn == null) {
+                throw new NullPointerException("udn is null.");
+            }
+            return new SearchCondition(0, udn, 0);
+        }
+
+        /**
+         * Completes the search when no reply has arrived for the given time
+         * after the last one, and all replied devices are fetched.
+         * 
+         * @param millis idle time in milliseconds
+         * @return condition
+         */
+        public static SearchCondition idleGap(long millis) {
+            if (millis <= 0) {
+                throw new IllegalArgumentException("millis <= 0");
+            }
+            return new SearchCondition(0, null, millis);
+        }
+
+        // Checks the device conditions.
+        private boolean isSatisfiedBy(List<ServerDevice> devices) {
+            if (mDeviceCount > 0) {
+                return devices.size() >= mDeviceCount;
+            }
+            if (mUdn != null) {
+                for (ServerDevice device : devices) {
+                    if (mUdn.equals(device.getUDN())) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Reply statistics of one network interface, accumulated over all
+     * searches.
+     */
+    public static final class InterfaceStats {
+        private final String mName;
+        private int mSearches;
+        private long mPacketsSent;
+        private long mReplies;
+        private long mDevices;
+        private long mLatencySum;
+        private long mMinLatency = -1;
+
+        private InterfaceStats(String name) {
+            mName = name;
+        }
+
+        private synchronized void onSearch() {
+            mSearches++;
+        }
+
+        private synchronized void onSend() {
+            mPacketsSent++;
+        }
+
+        private synchronized void onReply(boolean newDevice, long latency) {
+            mReplies++;
+            if (newDevice) {
+                mDevices++;
+                mLatencySum += latency;
+                if (mMinLatency == -1 || latency < mMinLatency) {
+                    mMinLatency = latency;
+                }
+            }
+        }
+
+        /**
+         * Returns the interface name, e.g. "wlan0".
+         * 
+         * @return name
+         */
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Returns the number of searches the interface took part in.
+         * 
+         * @return searches
+         */
+        public synchronized int getSearches() {
+            return mSearches;
+        }
+
+        /**
+         * Returns the number of M-SEARCH packets sent.
+         * 
+         * @return packets
+         */
+        public synchronized long getPacketsSent() {
+            return mPacketsSent;
+        }
+
+        /**
+         * Returns the number of replies, including repeated ones.
+         * 
+         * @return replies
+         */
+        public synchronized long getReplies() {
+            return mReplies;
+        }
+
+        /**
+         * Returns the number of devices first seen on this interface.
+         * 
+         * @return devices
+         */
+        public synchronized long getDevices() {
+            return mDevices;
+        }
+
+        /**
+         * Returns the devices found per search.
+         * 
+         * @return yield
+         */
+        public synchronized double getYield() {
+            return mSearches == 0 ? 0 : mDevices / (double) mSearches;
+        }
+
+        /**
+         * Returns the average time from the start of a search to the first
+         * reply of a device.
+         * 
+         * @return milliseconds, or -1 if no device was found
+         */
+        public synchronized double getAverageLatency() {
+            return mDevices == 0 ? -1 : mLatencySum / (double) mDevices;
+        }
+
+        /**
+         * Returns the shortest time from the start of a search to the first
+         * reply of a device.
+         * 
+         * @return milliseconds, or -1 if no device was found
+         */
+        public synchronized long getMinLatency() {
+            return mMinLatency;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return mName + ": searches=" + mSearches + " sent=" + mPacketsSent
+                    + " replies=" + mReplies + " devices=" + mDevices
+                    + " latency=" + getAverageLatency() + "ms";
+        }
+    }
+
+    private final Map<String, InterfaceStats> mInterfaceStats = new LinkedHashMap<String, InterfaceStats>();
+    private volatile DiscoveryCache mCache;
+    // Threads are reused across searches and die when idle.
+    private final ExecutorService mExecutor = Executors
+            .newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    // The following are guarded by this.
+    private List<Channel> mChannels;
+    private SearchSession mSession;
+    // Handler calls, made by dispatchEvents() after the lock is released.
+    private final ArrayDeque<Runnable> mEvents = new ArrayDeque<Runnable>();
+    private boolean mDispatching;
 
     /**
-     * Search API server device.
+     * Sets a cache that receives every device found by searching. The cache
+     * is saved when a search finishes.
+     * 
+     * @param cache discovery cache or null
+     */
+    public void setCache(DiscoveryCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Search API server device. If a search is in progress, the handler joins
+     * it instead of starting another one.
      * 
      * @param handler result handler
-     * @return true: start successfully, false: already searching now
+     * @return always true
      */
-    public synchronized boolean search(final SearchResultHandler handler) {
-        if (mSearching) {
-            Log.w(TAG, "search() already searching.");
-            return false;
-        }
+    public boolean search(SearchResultHandler handler) {
+        return search(handler, null);
+    }
+
+    /**
+     * Search API server device until the condition is met or the receive
+     * timeout passes, whichever comes first. If a search is in progress, the
+     * handler joins it: the devices found so far are reported right away, and
+     * the search is not extended.
+     * 
+     * @param handler result handler
+     * @param condition condition that completes the search early, or null
+     * @return always true
+     */
+    public boolean search(SearchResultHandler handler,
+            SearchCondition condition) {
         if (handler == null) {
             throw new NullPointerException("handler is null.");
         }
-        Log.i(TAG, "search() Start.");
-
-        final String ssdpRequest = "M-SEARCH * HTTP/1.1\r\n"
-                + String.format("HOST: %s:%d\r\n", SSDP_ADDR, SSDP_PORT)
-                + String.format("MAN: \"ssdp:discover\"\r\n")
-                + String.format("MX: %d\r\n", SSDP_MX)
-                + String.format("ST: %s\r\n", SSDP_ST) + "\r\n";
-        final byte[] sendData = ssdpRequest.getBytes();
-
-        new Thread() {
+        subscribe(new Subscriber(handler, condition));
+        return true;
+    }
 
+    /**
+     * Search API server device until the condition is met or the receive
+     * timeout passes. If a search is in progress, the request joins it.
+     * Cancelling the returned future stops the search immediately unless
+     * others are waiting for it.
+     * 
+     * @param condition condition that completes the search early, or null
+     * @return future of the devices found, failing with {@link IOException}
+     *         if the search fails
+     */
+    public ListenableFuture<List<ServerDevice>> search(
+            SearchCondition condition) {
+        final SettableFuture<List<ServerDevice>> future = SettableFuture
+                .create();
+        final List<ServerDevice> devices = new ArrayList<ServerDevice>();
+        final Subscriber subscriber = new Subscriber(new SearchResultHandler() {
             @Override
-            public void run() {
-                // Send Datagram packets
-                DatagramSocket socket = null;
-                DatagramPacket receivePacket = null;
-                DatagramPacket packet = null;
-                try {
-                    socket = new DatagramSocket();
-                    InetSocketAddress iAddress = new InetSocketAddress(
-                            SSDP_ADDR, SSDP_PORT);
-                    packet = new DatagramPacket(sendData, sendData.length,
-                            iAddress);
-                    // send 3 times
-                    Log.i(TAG, "search() Send Datagram packet 3 times.");
-                    socket.send(packet);
-                    Thread.sleep(100);
-                    socket.send(packet);
-                    Thread.sleep(100);
-                    socket.send(packet);
-                } catch (InterruptedException e) {
-                    // do nothing.
-                } catch (SocketException e) {
-                    Log.e(TAG, "search() DatagramSocket error:", e);
-                    handler.onErrorFinished();
-                } catch (IOException e) {
-                    Log.e(TAG, "search() IOException:", e);
-                    handler.onErrorFinished();
-                }
-
-                if (socket == null) {
-                    return;
+            public void onDeviceFound(ServerDevice device) {
+                synchronized (devices) {
+                    devices.add(device);
                 }
+            }
 
-                // Receive reply packets
-                mSearching = true;
-                long startTime = System.currentTimeMillis();
-                List<String> foundDevices = new ArrayList<String>();
-                byte[] array = new byte[PACKET_BUFFER_SIZE];
-                while (mSearching) {
-                    receivePacket = new DatagramPacket(array, array.length);
-                    try {
-                        socket.setSoTimeout(SSDP_RECEIVE_TIMEOUT);
-                        socket.receive(receivePacket);
-                        String ssdpReplyMessage = new String(
-                                receivePacket.getData(), 0,
-                                receivePacket.getLength());
-                        String ddUsn = findParameterValue(ssdpReplyMessage,
-                                "USN");
-
-                        /*
-                         * There is possibility to receive multiple packets from
-                         * a individual server.
-                         */
-                        if (!foundDevices.contains(ddUsn)) {
-                            String ddLocation = findParameterValue(
-                                    ssdpReplyMessage, "LOCATION");
-                            foundDevices.add(ddUsn);
-
-                            // Fetch Device Description XML and parse it.
-                            ServerDevice device = ServerDevice
-                                    .fetch(ddLocation);
-                            // Note that it's a irresponsible rule
-                            //   for the sample application.
-                            if (device != null
-                                    && device.hasApiService("camera")) {
-                                handler.onDeviceFound(device);
-                            }
-                        }
-                    } catch (InterruptedIOException e) {
-                        Log.d(TAG, "search() Timeout.");
-                        break;
-                    } catch (IOException e) {
-                        Log.d(TAG, "search() IOException.");
-                        handler.onErrorFinished();
-                        return;
-                    }
-                    if (SSDP_RECEIVE_TIMEOUT < System.currentTimeMillis() - startTime) {
-                        break;
-                    }
+            @Override
+            public void onFinished() {
+                synchronized (devices) {
+                    future.set(new ArrayList<ServerDevice>(devices));
                 }
-                mSearching = false;
-                if (socket != null && !socket.isClosed()) {
-                    socket.close();
+            }
+
+            @Override
+            public void onErrorFinished() {
+                future.setException(new IOException("search failed"));
+            }
+        }, condition);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isCancelled()) {
+                    unsubscribe(subscriber);
                 }
-                handler.onFinished();
-            };
-        }.start();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        subscribe(subscriber);
+        return future;
+    }
 
-        return true;
+    /**
+     * Returns reply statistics per network interface.
+     * 
+     * @return a list of statistics
+     */
+    public List<InterfaceStats> getInterfaceStats() {
+        synchronized (mInterfaceStats) {
+            return new ArrayList<InterfaceStats>(mInterfaceStats.values());
+        }
     }
 
     /**
@@ -177,38 +387,535 @@ public class SimpleSsdpClient {
      * 
      * @return true: now searching, false: otherwise
      */
-    public boolean isSearching() {
-        return mSearching;
+    public synchronized boolean isSearching() {
+        return mSession != null;
     }
 
     /**
-     * Cancels searching. Note that it cannot stop the operation immediately.
-     * 
-     * @return true: now searching, false: otherwise
+     * Cancels searching immediately. The handlers are finished with the
+     * devices found so far.
      */
-    public void cancelSearching() {
-        mSearching = false;
+    public synchronized void cancelSearching() {
+        if (mSession != null) {
+            Log.i(TAG, "search() cancelled.");
+            mSession.end(true);
+        }
     }
 
-    /*
-     * Find a value string from message line as below. (ex.)
-     * "ST: XXXXX-YYYYY-ZZZZZ" -> "XXXXX-YYYYY-ZZZZZ"
+    /**
+     * Cancels searching and closes the sockets. The client can still be used;
+     * the next search opens them again.
      */
-    private static String findParameterValue(String ssdpMessage,
-            String paramName) {
-        String name = paramName;
-        if (!name.endsWith(":")) {
-            name = name + ":";
+    public synchronized void close() {
+        cancelSearching();
+        closeChannels();
+    }
+
+    // Adds a subscriber to the search in progress, or starts one.
+    private synchronized void subscribe(Subscriber subscriber) {
+        if (mSession == null) {
+            Log.i(TAG, "search() Start.");
+            List<Channel> channels = openChannels();
+            for (Channel channel : channels) {
+                channel.mStats.onSearch();
+            }
+            final SearchSession session = new SearchSession();
+            mSession = session;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    session.run();
+                }
+            });
+        } else {
+            Log.i(TAG, "search() joined the search in progress.");
+        }
+        mSession.add(subscriber);
+    }
+
+    // Removes a subscriber without calling it. The search ends immediately
+    // when it was the last one.
+    private synchronized void unsubscribe(Subscriber subscriber) {
+        if (mSession != null && mSession.mSubscribers.remove(subscriber)
+                && mSession.mSubscribers.isEmpty()) {
+            mSession.end(true);
+        }
+    }
+
+    // Queues a handler call. Called with the lock held.
+    private void post(Runnable event) {
+        mEvents.addLast(event);
+        if (!mDispatching) {
+            mDispatching = true;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    dispatchEvents();
+                }
+            });
+        }
+    }
+
+    // Makes the queued handler calls on one thread, so that a slow handler
+    // neither holds up searching nor sees its calls reordered.
+    private void dispatchEvents() {
+        while (true) {
+            Runnable event;
+            synchronized (this) {
+                event = mEvents.pollFirst();
+                if (event == null) {
+                    mDispatching = false;
+                    return;
+                }
+            }
+            try {
+                event.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "search() handler failed.", e);
+            }
+        }
+    }
+
+    // A search request: its handler and its own condition.
+    private static class Subscriber {
+        private final SearchResultHandler mHandler;
+        private final SearchCondition mCondition;
+
+        private Subscriber(SearchResultHandler handler,
+                SearchCondition condition) {
+            mHandler = handler;
+            mCondition = condition;
+        }
+
+        private long getIdleGap() {
+            return mCondition != null ? mCondition.mIdleGap : 0;
+        }
+    }
+
+    // A socket that sends on one network interface, or on the default one
+    // if mAddress is null.
+    private static class Channel {
+        private final Inet4Address mAddress;
+        private final DatagramSocket mSocket;
+        private final InterfaceStats mStats;
+
+        private Channel(Inet4Address address, DatagramSocket socket,
+                InterfaceStats stats) {
+            mAddress = address;
+            mSocket = socket;
+            mStats = stats;
+        }
+    }
+
+    // Returns a socket on each multicast capable IPv4 interface, or on the
+    // default interface if there is none. The sockets of the previous search
+    // are kept as long as the interfaces are the same. Called with the lock
+    // held.
+    private List<Channel> openChannels() {
+        List<NetworkInterface> interfaces = new ArrayList<NetworkInterface>();
+        List<Inet4Address> addresses = new ArrayList<Inet4Address>();
+        try {
+            Enumeration<NetworkInterface> e = NetworkInterface
+                    .getNetworkInterfaces();
+            while (e != null && e.hasMoreElements()) {
+                NetworkInterface ni = e.nextElement();
+                Inet4Address address = findIpv4Address(ni);
+                if (address != null && ni.isUp() && !ni.isLoopback()
+                        && ni.supportsMulticast()) {
+                    interfaces.add(ni);
+                    addresses.add(address);
+                }
+            }
+        } catch (SocketException e) {
+            Log.w(TAG, "search() cannot enumerate interfaces.", e);
+        }
+        if (mChannels != null && isOpenOn(addresses)) {
+            return mChannels;
+        }
+        closeChannels();
+
+        List<Channel> channels = new ArrayList<Channel>();
+        for (int i = 0; i < interfaces.size(); i++) {
+            NetworkInterface ni = interfaces.get(i);
+            try {
+                MulticastSocket socket = new MulticastSocket(
+                        new InetSocketAddress(addresses.get(i), 0));
+                socket.setNetworkInterface(ni);
+                channels.add(new Channel(addresses.get(i), socket,
+                        getStats(ni.getName())));
+            } catch (IOException e) {
+                Log.w(TAG, "search() cannot open socket on " + ni.getName()
+                        + ": " + e.getMessage());
+            }
         }
-        int start = ssdpMessage.indexOf(name);
-        int end = ssdpMessage.indexOf("\r\n", start);
-        if (start != -1 && end != -1) {
-            start += name.length();
-            String val = ssdpMessage.substring(start, end);
-            if (val != null) {
-                return val.trim();
+        if (channels.isEmpty()) {
+            try {
+                channels.add(new Channel(null, new DatagramSocket(),
+                        getStats(DEFAULT_INTERFACE)));
+            } catch (SocketException e) {
+                Log.e(TAG, "search() DatagramSocket error:", e);
+                return channels;
+            }
+        }
+        mChannels = channels;
+        // One receiver per socket, replies are unicast to the sender.
+        for (final Channel channel : channels) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    receive(channel);
+                }
+            });
+        }
+        return channels;
+    }
+
+    // Checks to see whether the open sockets are bound to the addresses.
+    private boolean isOpenOn(List<Inet4Address> addresses) {
+        if (addresses.isEmpty()) {
+            return mChannels.size() == 1 && mChannels.get(0).mAddress == null;
+        }
+        if (mChannels.size() != addresses.size()) {
+            return false;
+        }
+        for (int i = 0; i < addresses.size(); i++) {
+            if (!addresses.get(i).equals(mChannels.get(i).mAddress)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Closing the sockets ends their receivers. Called with the lock held.
+    private void closeChannels() {
+        if (mChannels != null) {
+            for (Channel channel : mChannels) {
+                channel.mSocket.close();
+            }
+            mChannels = null;
+        }
+    }
+
+    private static Inet4Address findIpv4Address(NetworkInterface ni) {
+        Enumeration<InetAddress> addresses = ni.getInetAddresses();
+        while (addresses.hasMoreElements()) {
+            InetAddress address = addresses.nextElement();
+            if (address instanceof Inet4Address) {
+                return (Inet4Address) address;
             }
         }
         return null;
     }
+
+    private InterfaceStats getStats(String name) {
+        synchronized (mInterfaceStats) {
+            InterfaceStats stats = mInterfaceStats.get(name);
+            if (stats == null) {
+                stats = new InterfaceStats(name);
+                mInterfaceStats.put(name, stats);
+            }
+            return stats;
+        }
+    }
+
+    // Receives replies on one socket until it's closed. Replies are handed to
+    // the search in progress and dropped between searches.
+    private void receive(Channel channel) {
+        SsdpMessageParser parser = new SsdpMessageParser();
+        byte[] array = new byte[PACKET_BUFFER_SIZE];
+        DatagramPacket receivePacket = new DatagramPacket(array, array.length);
+        while (true) {
+            try {
+                receivePacket.setLength(array.length);
+                channel.mSocket.receive(receivePacket);
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (mChannels != null && mChannels.remove(channel)) {
+                        Log.w(TAG, "search() receive error on "
+                                + channel.mStats.getName() + ": "
+                                + e.getMessage());
+                        channel.mSocket.close();
+                        if (mChannels.isEmpty()) {
+                            mChannels = null;
+                        }
+                        notifyAll();
+                    }
+                }
+                return;
+            }
+            if (!parser.parse(array, 0, receivePacket.getLength())
+                    || !parser.has(SsdpMessageParser.USN)) {
+                continue;
+            }
+
+            /*
+             * There is possibility to receive multiple packets from a
+             * individual server. Strings are only made for new ones.
+             */
+            long now = System.currentTimeMillis();
+            final SearchSession session;
+            boolean newDevice;
+            synchronized (this) {
+                session = mSession;
+                if (session == null || !session.mReceiving) {
+                    continue;
+                }
+                session.mLastReplyTime = now;
+                newDevice = session.mFoundUsns.add(parser
+                        .hash(SsdpMessageParser.USN));
+                if (newDevice) {
+                    session.mPendingFetches++;
+                }
+                notifyAll();
+            }
+            channel.mStats.onReply(newDevice, now - session.mStartTime);
+            if (newDevice) {
+                final String usn = parser.getString(SsdpMessageParser.USN);
+                final String ddLocation = parser
+                        .getString(SsdpMessageParser.LOCATION);
+                final int maxAge = parser
+                        .getMaxAge(DiscoveryCache.DEFAULT_MAX_AGE);
+
+                // Fetch Device Description XML and parse it
+                // without blocking the other replies.
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        fetchDevice(session, usn, ddLocation, maxAge);
+                    }
+                });
+            }
+        }
+    }
+
+    // Fetches a device description and reports the device if it's usable.
+    private void fetchDevice(SearchSession session, String usn,
+            String ddLocation, int maxAge) {
+        DiscoveryCache cache = mCache;
+        ServerDevice device = null;
+        if (ddLocation != null) {
+            // A cached description is only fetched again if it changed.
+            device = ServerDevice.fetch(ddLocation, cache != null ? cache
+                    .findDevice(ddLocation) : null);
+        }
+        // Note that it's a irresponsible rule
+        //   for the sample application.
+        if (device != null && !device.hasApiService("camera")) {
+            device = null;
+        }
+        if (device != null && cache != null) {
+            cache.put(usn, device, maxAge);
+        }
+        synchronized (this) {
+            session.mPendingFetches--;
+            if (device != null && mSession == session) {
+                session.onDeviceFound(device);
+            }
+            notifyAll();
+        }
+    }
+
+    // The search in progress: sends M-SEARCH on every interface and collects
+    // the devices found until no subscriber is left. Its state is guarded by
+    // the lock of the client.
+    private class SearchSession {
+        private final List<Subscriber> mSubscribers = new ArrayList<Subscriber>();
+        private final List<ServerDevice> mFound = new ArrayList<ServerDevice>();
+        private final SsdpMessageParser.LongHashSet mFoundUsns = new SsdpMessageParser.LongHashSet();
+        private final long mStartTime = System.currentTimeMillis();
+        private long mLastReplyTime = -1;
+        private long mFetchDeadline;
+        private int mPendingFetches;
+        private boolean mReceiving = true;
+
+        private void run() {
+            final String ssdpRequest = "M-SEARCH * HTTP/1.1\r\n"
+                    + String.format("HOST: %s:%d\r\n", SSDP_ADDR, SSDP_PORT)
+                    + String.format("MAN: \"ssdp:discover\"\r\n")
+                    + String.format("MX: %d\r\n", SSDP_MX)
+                    + String.format("ST: %s\r\n", SSDP_ST) + "\r\n";
+            final byte[] sendData = ssdpRequest.getBytes();
+            DatagramPacket packet = new DatagramPacket(sendData,
+                    sendData.length, new InetSocketAddress(SSDP_ADDR,
+                            SSDP_PORT));
+
+            List<Channel> channels;
+            for (int sent = 0; (channels = awaitSend(sent)) != null; sent++) {
+                if (sent == 0) {
+                    Log.i(TAG, "search() Send Datagram packets on "
+                            + channels.size() + " interface(s).");
+                }
+                for (Channel channel : channels) {
+                    try {
+                        channel.mSocket.send(packet);
+                        channel.mStats.onSend();
+                    } catch (IOException e) {
+                        if (!channel.mSocket.isClosed()) {
+                            Log.w(TAG, "search() send error on "
+                                    + channel.mStats.getName() + ": "
+                                    + e.getMessage());
+                        }
+                    }
+                }
+            }
+            Log.d(TAG, "search() done.");
+
+            DiscoveryCache cache = mCache;
+            if (cache != null) {
+                cache.save();
+            }
+            for (InterfaceStats stats : getInterfaceStats()) {
+                Log.d(TAG, "search() " + stats);
+            }
+        }
+
+        // Waits until the send with the given number is due, finishing the
+        // subscribers whose search is over meanwhile.
+        //
+        // Returns the sockets to send on, or null when the search is over.
+        private List<Channel> awaitSend(int sent) {
+            synchronized (SimpleSsdpClient.this) {
+                while (mSession == this) {
+                    long now = System.currentTimeMillis();
+                    long wakeUp = update(now);
+                    if (mSession != this) {
+                        break;
+                    }
+                    if (sent < RESEND_TIMES.length) {
+                        long sendTime = mStartTime + RESEND_TIMES[sent];
+                        if (now >= sendTime) {
+                            return new ArrayList<Channel>(mChannels);
+                        }
+                        wakeUp = Math.min(wakeUp, sendTime);
+                    }
+                    try {
+                        SimpleSsdpClient.this.wait(Math.max(1, wakeUp - now));
+                    } catch (InterruptedException e) {
+                        end(false);
+                    }
+                }
+                return null;
+            }
+        }
+
+        // Ends the search or finishes the subscribers that are done.
+        //
+        // Returns the time of the next deadline.
+        private long update(long now) {
+            if (mSubscribers.isEmpty()) {
+                end(true);
+                return now;
+            }
+            if (mChannels == null) {
+                Log.d(TAG, "search() IOException.");
+                end(false);
+                return now;
+            }
+            if (mReceiving && now >= mStartTime + SSDP_RECEIVE_TIMEOUT) {
+                Log.d(TAG, "search() receive done.");
+                mReceiving = false;
+                mFetchDeadline = now + DD_FETCH_TIMEOUT;
+            }
+            if (!mReceiving && (mPendingFetches == 0 || now >= mFetchDeadline)) {
+                end(true);
+                return now;
+            }
+            long wakeUp = mReceiving ? mStartTime + SSDP_RECEIVE_TIMEOUT
+                    : mFetchDeadline;
+            // Waiting for replies that are still being fetched is woken up
+            // by fetchDevice().
+            if (mLastReplyTime != -1 && mPendingFetches == 0) {
+                for (Subscriber subscriber : new ArrayList<Subscriber>(
+                        mSubscribers)) {
+                    long idleGap = subscriber.getIdleGap();
+                    if (idleGap <= 0) {
+                        continue;
+                    }
+                    if (now >= mLastReplyTime + idleGap) {
+                        Log.i(TAG, "search() idle gap passed.");
+                        finish(subscriber, true);
+                    } else {
+                        wakeUp = Math.min(wakeUp, mLastReplyTime + idleGap);
+                    }
+                }
+                if (mSubscribers.isEmpty()) {
+                    end(true);
+                }
+            }
+            return wakeUp;
+        }
+
+        // Adds a subscriber, reporting the devices found so far.
+        private void add(Subscriber subscriber) {
+            for (ServerDevice device : mFound) {
+                postDeviceFound(subscriber, device);
+            }
+            if (isSatisfied(subscriber)) {
+                postFinished(subscriber, true);
+                return;
+            }
+            mSubscribers.add(subscriber);
+            SimpleSsdpClient.this.notifyAll();
+        }
+
+        private void onDeviceFound(ServerDevice device) {
+            mFound.add(device);
+            for (Subscriber subscriber : new ArrayList<Subscriber>(mSubscribers)) {
+                postDeviceFound(subscriber, device);
+                if (isSatisfied(subscriber)) {
+                    Log.i(TAG, "search() condition met.");
+                    finish(subscriber, true);
+                }
+            }
+        }
+
+        private boolean isSatisfied(Subscriber subscriber) {
+            return subscriber.mCondition != null
+                    && subscriber.mCondition.isSatisfiedBy(mFound);
+        }
+
+        // Reports the end of the search to one subscriber.
+        private void finish(Subscriber subscriber, boolean success) {
+            mSubscribers.remove(subscriber);
+            postFinished(subscriber, success);
+        }
+
+        private void postDeviceFound(Subscriber subscriber,
+                final ServerDevice device) {
+            final SearchResultHandler handler = subscriber.mHandler;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    handler.onDeviceFound(device);
+                }
+            });
+        }
+
+        private void postFinished(Subscriber subscriber, final boolean success) {
+            final SearchResultHandler handler = subscriber.mHandler;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    if (success) {
+                        handler.onFinished();
+                    } else {
+                        handler.onErrorFinished();
+                    }
+                }
+            });
+        }
+
+        // Ends the search at once, finishing the remaining subscribers.
+        private void end(boolean success) {
+            if (mSession != this) {
+                return;
+            }
+            mSession = null;
+            mReceiving = false;
+            while (!mSubscribers.isEmpty()) {
+                finish(mSubscribers.get(0), success);
+            }
+            SimpleSsdpClient.this.notifyAll();
+        }
+    }
 }
@@ -0,0 +1,353 @@
+package com.codeschmoof.android.timelapse.api;
+
+import java.nio.charset.Charset;
+
+/**
+ * Parses SSDP messages in place, without converting the packet to a String.
+ * <p/>
+ * {@link #parse(byte[], int, int)} makes one pass over the header lines and
+ * records where the values of the known headers are. Header names are matched
+ * case-insensitively. Values can then be hashed or compared as bytes, so a
+ * repeated reply is recognized without allocating anything; Strings are only
+ * created on request, e.g. for a device seen for the first time.
+ */
+public final class SsdpMessageParser {
+
+    /** USN header */
+    public static final int USN = 0;
+    /** LOCATION header */
+    public static final int LOCATION = 1;
+    /** CACHE-CONTROL header */
+    public static final int CACHE_CONTROL = 2;
+    /** ST header */
+    public static final int ST = 3;
+    /** NT header */
+    public static final int NT = 4;
+    /** NTS header */
+    public static final int NTS = 5;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    // lower case, indexed by the header constants
+    private static final byte[][] NAMES = {
+            ascii("usn"), ascii("location"), ascii("cache-control"),
+            ascii("st"), ascii("nt"), ascii("nts")
+    };
+    private static final byte[] NOTIFY = ascii("NOTIFY ");
+    private static final byte[] MAX_AGE = ascii("max-age");
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int[] mStart = new int[NAMES.length];
+    private final int[] mEnd = new int[NAMES.length];
+    private byte[] mData;
+    private boolean mNotify;
+
+    /**
+     * Parses a message. The data is referenced, not copied, until the next
+     * call.
+     *
+     * @param data packet buffer
+     * @param offset offset of the message
+     * @param length length of the message
+     * @return false if the message has no header lines
+     */
+    public boolean parse(byte[] data, int offset, int length) {
+        mData = data;
+        int[] starts = mStart;
+        int[] ends = mEnd;
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = -1;
+        }
+        int end = offset + length;
+        mNotify = regionMatches(data, offset, end, NOTIFY, false);
+
+        // Skip the start line.
+        int i = offset;
+        while (i < end && data[i] != '\n') {
+            i++;
+        }
+        i++;
+
+        boolean headers = false;
+        while (i < end) {
+            byte first = data[i];
+            if (first == '\r' || first == '\n') {
+                break; // empty line, end of headers
+            }
+            headers = true;
+            // Only names starting like one of ours are looked at.
+            int c = first | 0x20;
+            if (c == 'u' || c == 'l' || c == 'c' || c == 's' || c == 'n') {
+                int lineStart = i;
+                byte b = 0;
+                while (i < end) {
+                    b = data[i];
+                    if (b == ':' || b == '\n') {
+                        break;
+                    }
+                    i++;
+                }
+                if (i < end && b == ':') {
+                    int nameEnd = i;
+                    while (nameEnd > lineStart && isBlank(data[nameEnd - 1])) {
+                        nameEnd--;
+                    }
+                    int header = findName(data, lineStart, nameEnd);
+                    i++;
+                    if (header != -1 && starts[header] == -1) {
+                        while (i < end && isBlank(data[i])) {
+                            i++;
+                        }
+                        int valueStart = i;
+                        while (i < end && data[i] != '\r' && data[i] != '\n') {
+                            i++;
+                        }
+                        int valueEnd = i;
+                        while (valueEnd > valueStart
+                                && isBlank(data[valueEnd - 1])) {
+                            valueEnd--;
+                        }
+                        starts[header] = valueStart;
+                        ends[header] = valueEnd;
+                    }
+                }
+            }
+            // Skip the rest of the line.
+            while (i < end && data[i] != '\n') {
+                i++;
+            }
+            i++;
+        }
+        return headers;
+    }
+
+    /**
+     * Checks to see whether the message is a NOTIFY request.
+     *
+     * @return true if NOTIFY
+     */
+    public boolean isNotify() {
+        return mNotify;
+    }
+
+    /**
+     * Checks to see whether the message has the header.
+     *
+     * @param header header constant
+     * @return true if present
+     */
+    public boolean has(int header) {
+        return mStart[header] != -1;
+    }
+
+    /**
+     * Returns the header value as a new String.
+     *
+     * @param header header constant
+     * @return value or null if absent
+     */
+    public String getString(int header) {
+        if (mStart[header] == -1) {
+            return null;
+        }
+        return new String(mData, mStart[header], mEnd[header] - mStart[header],
+                US_ASCII);
+    }
+
+    /**
+     * Compares the header value with the expected bytes.
+     *
+     * @param header header constant
+     * @param expected expected value
+     * @return true if equal
+     */
+    public boolean valueEquals(int header, byte[] expected) {
+        return mStart[header] != -1
+                && mEnd[header] - mStart[header] == expected.length
+                && regionMatches(mData, mStart[header], mEnd[header], expected,
+                        false);
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of the header value.
+     *
+     * @param header header constant
+     * @return hash, 0 if absent
+     */
+    public long hash(int header) {
+        if (mStart[header] == -1) {
+            return 0;
+        }
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = mStart[header]; i < mEnd[header]; i++) {
+            hash ^= mData[i] & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns max-age of the CACHE-CONTROL header.
+     *
+     * @param defaultMaxAge value if there is no usable max-age
+     * @return seconds
+     */
+    public int getMaxAge(int defaultMaxAge) {
+        int start = mStart[CACHE_CONTROL];
+        if (start == -1) {
+            return defaultMaxAge;
+        }
+        int end = mEnd[CACHE_CONTROL];
+        for (int i = start; i + MAX_AGE.length <= end; i++) {
+            if (!regionMatches(mData, i, end, MAX_AGE, true)) {
+                continue;
+            }
+            int j = i + MAX_AGE.length;
+            while (j < end && isBlank(mData[j])) {
+                j++;
+            }
+            if (j == end || mData[j] != '=') {
+                return defaultMaxAge;
+            }
+            j++;
+            while (j < end && isBlank(mData[j])) {
+                j++;
+            }
+            long value = 0;
+            int digits = 0;
+            while (j < end && mData[j] >= '0' && mData[j] <= '9'
+                    && value <= Integer.MAX_VALUE) {
+                value = value * 10 + (mData[j] - '0');
+                j++;
+                digits++;
+            }
+            return digits == 0 || value > Integer.MAX_VALUE ? defaultMaxAge
+                    : (int) value;
+        }
+        return defaultMaxAge;
+    }
+
+    // Returns the header constant of a name, or -1.
+    private static int findName(byte[] data, int start, int end) {
+        int header;
+        switch (end - start) {
+        case 2:
+            header = (data[start] | 0x20) == 's' ? ST : NT;
+            break;
+        case 3:
+            header = (data[start] | 0x20) == 'u' ? USN : NTS;
+            break;
+        case 8:
+            header = LOCATION;
+            break;
+        case 13:
+            header = CACHE_CONTROL;
+            break;
+        default:
+            return -1;
+        }
+        return regionMatches(data, start, end, NAMES[header], true) ? header
+                : -1;
+    }
+
+    // Compares data[start..] with the prefix, optionally ignoring the case of
+    // ASCII letters in data (the prefix has to be lower case then).
+    private static boolean regionMatches(byte[] data, int start, int end,
+            byte[] prefix, boolean ignoreCase) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            int b = data[start + i];
+            if (ignoreCase && b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    /**
+     * Returns the ASCII bytes of a string, e.g. for
+     * {@link #valueEquals(int, byte[])}.
+     *
+     * @param s string
+     * @return bytes
+     */
+    public static byte[] ascii(String s) {
+        return s.getBytes(US_ASCII);
+    }
+
+    /**
+     * Set of value hashes, e.g. to recognize USNs that were seen before
+     * without creating Strings. Distinct values with the same 64-bit hash are
+     * taken as equal; for the few devices of a search that is negligible.
+     */
+    public static final class LongHashSet {
+        private long[] mTable = new long[16];
+        private int mSize;
+
+        /**
+         * Adds a hash.
+         *
+         * @param hash hash value
+         * @return true if it was not in the set
+         */
+        public boolean add(long hash) {
+            if (hash == 0) {
+                hash = 1; // 0 marks free slots
+            }
+            int mask = mTable.length - 1;
+            int i = (int) (hash ^ (hash >>> 32)) & mask;
+            while (mTable[i] != 0) {
+                if (mTable[i] == hash) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            mTable[i] = hash;
+            if (++mSize * 2 > mTable.length) {
+                grow();
+            }
+            return true;
+        }
+
+        /**
+         * Returns the number of hashes.
+         *
+         * @return size
+         */
+        public int size() {
+            return mSize;
+        }
+
+        /**
+         * Removes all hashes.
+         */
+        public void clear() {
+            for (int i = 0; i < mTable.length; i++) {
+                mTable[i] = 0;
+            }
+            mSize = 0;
+        }
+
+        private void grow() {
+            long[] old = mTable;
+            mTable = new long[old.length * 2];
+            mSize = 0;
+            for (long hash : old) {
+                if (hash != 0) {
+                    add(hash);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package com.codeschmoof.android.timelapse.api;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Keeps a live registry of API server devices from SSDP NOTIFY messages.
+ * <p/>
+ * The listener joins the SSDP multicast group and handles the ssdp:alive and
+ * ssdp:byebye announcements that devices send on their own, so cameras that
+ * appear or leave are noticed without sending any search traffic. A device
+ * that stops announcing itself is removed when the max-age of its last
+ * announcement runs out.
+ * <p/>
+ * On Android, multicast packets are filtered unless a
+ * {@code WifiManager.MulticastLock} is held while listening. The lock costs
+ * battery, so hold it only as long as the listener runs.
+ */
+public class SsdpNotifyListener {
+
+    private static final String TAG = SsdpNotifyListener.class.getSimpleName();
+
+    private static final int RECEIVE_TIMEOUT = 1000; // [msec]
+    private static final int PACKET_BUFFER_SIZE = 1024;
+    private static final int DD_FETCH_THREADS = 2;
+    private static final byte[] NTS_ALIVE = SsdpMessageParser.ascii("ssdp:alive");
+    private static final byte[] NTS_BYEBYE = SsdpMessageParser.ascii("ssdp:byebye");
+    private static final byte[] NT_API = SsdpMessageParser.ascii(SimpleSsdpClient.SSDP_ST);
+
+    /** Receives changes of the registry. Called on a background thread. */
+    public interface DeviceListener {
+
+        /**
+         * Called when a device announces itself for the first time.
+         *
+         * @param device API server device
+         */
+        public void onDeviceAdded(ServerDevice device);
+
+        /**
+         * Called when a device said goodbye or its announcement expired.
+         *
+         * @param device API server device
+         */
+        public void onDeviceRemoved(ServerDevice device);
+    }
+
+    // A registered device and the time its last announcement expires.
+    private static class Registration {
+        private final ServerDevice mDevice;
+        private long mExpiresAt;
+
+        private Registration(ServerDevice device, long expiresAt) {
+            mDevice = device;
+            mExpiresAt = expiresAt;
+        }
+    }
+
+    private final DeviceListener mListener;
+    private final Map<String, Registration> mDevices = new LinkedHashMap<String, Registration>();
+    private final Set<String> mPendingFetches = new HashSet<String>();
+    private volatile boolean mRunning;
+    private int mGeneration;
+    private MulticastSocket mSocket;
+    private ExecutorService mFetchPool;
+    private volatile DiscoveryCache mCache;
+
+    /**
+     * Constructor
+     *
+     * @param listener receives registry changes
+     */
+    public SsdpNotifyListener(DeviceListener listener) {
+        if (listener == null) {
+            throw new NullPointerException("listener is null.");
+        }
+        mListener = listener;
+    }
+
+    /**
+     * Sets a cache that receives every newly announced device. Its entries
+     * are the baseline of conditional description requests, so a camera that
+     * announces itself again is not downloaded again unless it changed.
+     *
+     * @param cache discovery cache or null
+     */
+    public void setCache(DiscoveryCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Starts listening on a background thread.
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mFetchPool = Executors.newFixedThreadPool(DD_FETCH_THREADS);
+        final int generation = ++mGeneration;
+        new Thread(TAG) {
+            @Override
+            public void run() {
+                receiveLoop(generation);
+            }
+        }.start();
+    }
+
+    /**
+     * Stops listening. The registry is kept, but its devices are no longer
+     * refreshed.
+     */
+    public synchronized void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        if (mSocket != null) {
+            // unblocks the receive thread
+            mSocket.close();
+            mSocket = null;
+        }
+        mFetchPool.shutdownNow();
+        mFetchPool = null;
+    }
+
+    /**
+     * Checks to see whether the listener is running.
+     *
+     * @return true if running
+     */
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Registers a device found by other means, e.g. by searching, so that its
+     * departure is reported too. No callback is made for it.
+     *
+     * @param device API server device
+     * @param maxAge seconds the device stays registered without announcements
+     */
+    public void addDevice(ServerDevice device, int maxAge) {
+        if (device.getUDN() == null) {
+            return;
+        }
+        synchronized (mDevices) {
+            Registration registration = mDevices.get(device.getUDN());
+            long expiresAt = now() + maxAge * 1000L;
+            if (registration == null) {
+                mDevices.put(device.getUDN(), new Registration(device,
+                        expiresAt));
+            } else {
+                registration.mExpiresAt = Math.max(registration.mExpiresAt,
+                        expiresAt);
+            }
+        }
+    }
+
+    /**
+     * Returns the registered devices.
+     *
+     * @return a list of devices
+     */
+    public List<ServerDevice> getDevices() {
+        synchronized (mDevices) {
+            List<ServerDevice> devices = new ArrayList<ServerDevice>(
+                    mDevices.size());
+            for (Registration registration : mDevices.values()) {
+                devices.add(registration.mDevice);
+            }
+            return devices;
+        }
+    }
+
+    // Checks to see whether the thread of a start() call should go on.
+    private synchronized boolean isCurrent(int generation) {
+        return mRunning && generation == mGeneration;
+    }
+
+    private void receiveLoop(int generation) {
+        MulticastSocket socket;
+        try {
+            socket = new MulticastSocket(SimpleSsdpClient.SSDP_PORT);
+            socket.setSoTimeout(RECEIVE_TIMEOUT);
+            socket.joinGroup(InetAddress.getByName(SimpleSsdpClient.SSDP_ADDR));
+        } catch (IOException e) {
+            Log.e(TAG, "receiveLoop() cannot join multicast group.", e);
+            synchronized (this) {
+                if (isCurrent(generation)) {
+                    stop();
+                }
+            }
+            return;
+        }
+        synchronized (this) {
+            if (!isCurrent(generation)) {
+                socket.close();
+                return;
+            }
+            mSocket = socket;
+        }
+        Log.i(TAG, "receiveLoop() Start.");
+
+        SsdpMessageParser parser = new SsdpMessageParser();
+        byte[] buffer = new byte[PACKET_BUFFER_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (isCurrent(generation)) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                if (parser.parse(buffer, 0, packet.getLength())) {
+                    handleMessage(parser);
+                }
+            } catch (SocketTimeoutException e) {
+                // check expiry below
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (isCurrent(generation)) {
+                        Log.w(TAG, "receiveLoop() IOException.", e);
+                        stop();
+                    }
+                }
+                break;
+            }
+            expireDevices();
+        }
+        Log.i(TAG, "receiveLoop() End.");
+    }
+
+    // Handles a parsed NOTIFY message. M-SEARCH requests of other clients
+    // and other NOTIFY types are ignored without creating any String.
+    private void handleMessage(SsdpMessageParser parser) {
+        if (!parser.isNotify() || !parser.has(SsdpMessageParser.USN)) {
+            return;
+        }
+        boolean alive = parser.valueEquals(SsdpMessageParser.NTS, NTS_ALIVE);
+        if (!alive && !parser.valueEquals(SsdpMessageParser.NTS, NTS_BYEBYE)) {
+            return;
+        }
+        // USN is "uuid:...::urn:..." or just the UDN for the uuid announcement
+        String usn = parser.getString(SsdpMessageParser.USN);
+        int i = usn.indexOf("::");
+        final String udn = i == -1 ? usn : usn.substring(0, i);
+
+        if (alive) {
+            int maxAge = parser.getMaxAge(DiscoveryCache.DEFAULT_MAX_AGE);
+            synchronized (mDevices) {
+                Registration registration = mDevices.get(udn);
+                if (registration != null) {
+                    registration.mExpiresAt = now() + maxAge * 1000L;
+                    return;
+                }
+            }
+            if (!parser.valueEquals(SsdpMessageParser.NT, NT_API)
+                    || !parser.has(SsdpMessageParser.LOCATION)) {
+                return;
+            }
+            final String ddLocation = parser
+                    .getString(SsdpMessageParser.LOCATION);
+            ExecutorService fetchPool = mFetchPool;
+            if (fetchPool == null) {
+                return;
+            }
+            synchronized (mPendingFetches) {
+                if (!mPendingFetches.add(udn)) {
+                    return;
+                }
+            }
+            final int deviceMaxAge = maxAge;
+            try {
+                fetchPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            fetchDevice(udn, ddLocation, deviceMaxAge);
+                        } finally {
+                            synchronized (mPendingFetches) {
+                                mPendingFetches.remove(udn);
+                            }
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // stopped meanwhile
+                synchronized (mPendingFetches) {
+                    mPendingFetches.remove(udn);
+                }
+            }
+        } else {
+            Registration registration;
+            synchronized (mDevices) {
+                registration = mDevices.remove(udn);
+            }
+            if (registration != null) {
+                Log.d(TAG, "handleMessage() byebye: " + udn);
+                mListener.onDeviceRemoved(registration.mDevice);
+            }
+        }
+    }
+
+    // Fetches the description of a newly announced device.
+    private void fetchDevice(String udn, String ddLocation, int maxAge) {
+        DiscoveryCache cache = mCache;
+        // A cached description is only fetched again if it changed.
+        ServerDevice device = ServerDevice.fetch(ddLocation, cache != null
+                ? cache.findDevice(ddLocation) : null);
+        // Same rule as SimpleSsdpClient.
+        if (device == null || !device.hasApiService("camera")) {
+            return;
+        }
+        if (cache != null) {
+            cache.put(udn, device, maxAge);
+            cache.save();
+        }
+        synchronized (mDevices) {
+            if (mDevices.containsKey(udn)) {
+                return;
+            }
+            mDevices.put(udn, new Registration(device, now() + maxAge * 1000L));
+        }
+        Log.d(TAG, "fetchDevice() alive: " + udn);
+        mListener.onDeviceAdded(device);
+    }
+
+    // Removes devices whose last announcement expired.
+    private void expireDevices() {
+        List<ServerDevice> expired = null;
+        long now = now();
+        synchronized (mDevices) {
+            Iterator<Registration> it = mDevices.values().iterator();
+            while (it.hasNext()) {
+                Registration registration = it.next();
+                if (registration.mExpiresAt <= now) {
+                    it.remove();
+                    if (expired == null) {
+                        expired = new ArrayList<ServerDevice>();
+                    }
+                    expired.add(registration.mDevice);
+                }
+            }
+        }
+        if (expired != null) {
+            for (ServerDevice device : expired) {
+                mListener.onDeviceRemoved(device);
+            }
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+}
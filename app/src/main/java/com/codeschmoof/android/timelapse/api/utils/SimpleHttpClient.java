@@ -51,8 +51,135 @@ public class SimpleHttpClient {
      *             Exception.
      */
     public static String httpGet(String url, int timeout) throws IOException {
+        InputStream inputStream = openGet(url, timeout);
+
+        // Read stream as String
+        BufferedReader reader = null;
+        try {
+            StringBuilder responseBuf = new StringBuilder();
+            reader = new BufferedReader(new InputStreamReader(inputStream));
+            int c;
+            while ((c = reader.read()) != -1) {
+                responseBuf.append((char) c);
+            }
+            return responseBuf.toString();
+        } catch (IOException e) {
+            Log.w(TAG, "httpGet: read error: " + e.getMessage());
+            throw e;
+        } finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "IOException while closing BufferedReader");
+            }
+            try {
+                if (inputStream != null) {
+                    inputStream.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "IOException while closing InputStream");
+            }
+        }
+    }
+
+    /**
+     * Send HTTP GET request to the indicated url. Then returns the response
+     * body as a stream, so that it can be parsed while it's received. The
+     * caller has to close the stream.
+     * 
+     * @param url request target
+     * @return response body
+     * @throws java.io.IOException all errors and exception are wrapped by this
+     *             Exception.
+     */
+    public static InputStream httpGetStream(String url) throws IOException {
+        return openGet(url, DEFAULT_READ_TIMEOUT);
+    }
+
+    /**
+     * Send a conditional HTTP GET request with the validators of a previous
+     * response. The server answers 304 Not Modified without a body if the
+     * resource has not changed.
+     * 
+     * @param url request target
+     * @param eTag ETag of the previous response, or null
+     * @param lastModified Last-Modified of the previous response, or null
+     * @return response; the caller has to close its body
+     * @throws java.io.IOException all errors and exception are wrapped by this
+     *             Exception.
+     */
+    public static ConditionalResponse httpGetConditional(String url,
+            String eTag, String lastModified) throws IOException {
+        return openGet(url, DEFAULT_READ_TIMEOUT, eTag, lastModified);
+    }
+
+    /**
+     * Response of a conditional GET request.
+     */
+    public static class ConditionalResponse {
+        private final InputStream mBody;
+        private final String mETag;
+        private final String mLastModified;
+
+        private ConditionalResponse(InputStream body, String eTag,
+                String lastModified) {
+            mBody = body;
+            mETag = eTag;
+            mLastModified = lastModified;
+        }
+
+        /**
+         * Checks to see whether the server answered 304 Not Modified.
+         * 
+         * @return true if the previous response is still valid
+         */
+        public boolean isNotModified() {
+            return mBody == null;
+        }
+
+        /**
+         * Returns the response body.
+         * 
+         * @return body, or null if not modified
+         */
+        public InputStream getBody() {
+            return mBody;
+        }
+
+        /**
+         * Returns the ETag header of the response.
+         * 
+         * @return ETag or null
+         */
+        public String getETag() {
+            return mETag;
+        }
+
+        /**
+         * Returns the Last-Modified header of the response.
+         * 
+         * @return Last-Modified or null
+         */
+        public String getLastModified() {
+            return mLastModified;
+        }
+    }
+
+    // Sends a GET request and returns the response body of a 200 response.
+    private static InputStream openGet(String url, int timeout)
+            throws IOException {
+        return openGet(url, timeout, null, null).getBody();
+    }
+
+    // Sends a GET request, conditional if there are validators. Returns the
+    // response of a 200 response, or a not modified one for 304.
+    private static ConditionalResponse openGet(String url, int timeout,
+            String eTag, String lastModified) throws IOException {
         HttpURLConnection httpConn = null;
         InputStream inputStream = null;
+        boolean conditional = eTag != null || lastModified != null;
 
         // Open connection and input stream
         try {
@@ -61,9 +188,20 @@ public class SimpleHttpClient {
             httpConn.setRequestMethod("GET");
             httpConn.setConnectTimeout(DEFAULT_CONNECTION_TIMEOUT);
             httpConn.setReadTimeout(timeout);
+            if (eTag != null) {
+                httpConn.setRequestProperty("If-None-Match", eTag);
+            }
+            if (lastModified != null) {
+                httpConn.setRequestProperty("If-Modified-Since", lastModified);
+            }
             httpConn.connect();
 
             int responseCode = httpConn.getResponseCode();
+            if (conditional
+                    && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                httpConn.disconnect();
+                return new ConditionalResponse(null, eTag, lastModified);
+            }
             if (responseCode == HttpURLConnection.HTTP_OK) {
                 inputStream = httpConn.getInputStream();
             }
@@ -85,36 +223,9 @@ public class SimpleHttpClient {
             }
             throw e;
         }
-
-        // Read stream as String
-        BufferedReader reader = null;
-        try {
-            StringBuilder responseBuf = new StringBuilder();
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-            int c;
-            while ((c = reader.read()) != -1) {
-                responseBuf.append((char) c);
-            }
-            return responseBuf.toString();
-        } catch (IOException e) {
-            Log.w(TAG, "httpGet: read error: " + e.getMessage());
-            throw e;
-        } finally {
-            try {
-                if (reader != null) {
-                    reader.close();
-                }
-            } catch (IOException e) {
-                Log.w(TAG, "IOException while closing BufferedReader");
-            }
-            try {
-                if (inputStream != null) {
-                    inputStream.close();
-                }
-            } catch (IOException e) {
-                Log.w(TAG, "IOException while closing InputStream");
-            }
-        }
+        return new ConditionalResponse(inputStream,
+                httpConn.getHeaderField("ETag"),
+                httpConn.getHeaderField("Last-Modified"));
     }
 
     /**
@@ -4,7 +4,6 @@
 
 package com.codeschmoof.android.timelapse.api.utils;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
@@ -26,19 +25,246 @@ public class SimpleLiveviewSlicer {
         /** padding data container */
         final public byte[] paddingData;
 
+        /** sequence number of the Packet (0 - 65535, wraps around) */
+        final public int sequenceNumber;
+
+        /** time stamp of the Packet in milliseconds (unsigned 32 bit) */
+        final public long timeStamp;
+
         /**
          * Constructor
          */
-        private Payload(byte[] jpegData, byte[] paddingData) {
+        private Payload(byte[] jpegData, byte[] paddingData,
+                int sequenceNumber, long timeStamp) {
             this.jpegData = jpegData;
             this.paddingData = paddingData;
+            this.sequenceNumber = sequenceNumber;
+            this.timeStamp = timeStamp;
         }
     }
 
+    /**
+     * Frame information of a Packet with payload type 0x02 (focus frames,
+     * face detection frames and so on). The instance is owned by the slicer
+     * and overwritten by the next frame information Packet; use
+     * {@link #copyTo(FrameInfo)} to keep the values.
+     */
+    public static class FrameInfo {
+        /** category: contrast AF frame */
+        public static final int CATEGORY_CONTRAST_AF = 0x01;
+        /** category: phase detection AF frame */
+        public static final int CATEGORY_PHASE_DETECTION_AF = 0x02;
+        /** category: face detection frame */
+        public static final int CATEGORY_FACE = 0x04;
+        /** category: tracking frame */
+        public static final int CATEGORY_TRACKING = 0x05;
+
+        /** status: normal */
+        public static final int STATUS_NORMAL = 0x01;
+        /** status: main subject */
+        public static final int STATUS_MAIN = 0x02;
+        /** status: sub subject */
+        public static final int STATUS_SUB = 0x03;
+        /** status: in focus */
+        public static final int STATUS_FOCUSED = 0x04;
+
+        /** coordinates are relative to this size of the liveview image */
+        public static final int COORDINATE_RANGE = 10000;
+
+        private int mSequenceNumber;
+        private long mTimeStamp;
+        private int mVersion;
+        private int mCount;
+        // left, top, right, bottom, category, status, additional status
+        private int[] mValues = new int[0];
+
+        /**
+         * Returns the sequence number of the Packet.
+         * 
+         * @return sequence number
+         */
+        public int getSequenceNumber() {
+            return mSequenceNumber;
+        }
+
+        /**
+         * Returns the time stamp of the Packet.
+         * 
+         * @return time stamp in milliseconds
+         */
+        public long getTimeStamp() {
+            return mTimeStamp;
+        }
+
+        /**
+         * Returns the frame information version, major version in the upper
+         * byte.
+         * 
+         * @return version
+         */
+        public int getVersion() {
+            return mVersion;
+        }
+
+        /**
+         * Returns the number of frames.
+         * 
+         * @return frame count
+         */
+        public int getFrameCount() {
+            return mCount;
+        }
+
+        /**
+         * Returns the left edge of a frame (0 - 10000).
+         * 
+         * @param index frame index
+         * @return left edge
+         */
+        public int getLeft(int index) {
+            return value(index, 0);
+        }
+
+        /**
+         * Returns the top edge of a frame (0 - 10000).
+         * 
+         * @param index frame index
+         * @return top edge
+         */
+        public int getTop(int index) {
+            return value(index, 1);
+        }
+
+        /**
+         * Returns the right edge of a frame (0 - 10000).
+         * 
+         * @param index frame index
+         * @return right edge
+         */
+        public int getRight(int index) {
+            return value(index, 2);
+        }
+
+        /**
+         * Returns the bottom edge of a frame (0 - 10000).
+         * 
+         * @param index frame index
+         * @return bottom edge
+         */
+        public int getBottom(int index) {
+            return value(index, 3);
+        }
+
+        /**
+         * Returns the category of a frame, e.g. {@link #CATEGORY_FACE}.
+         * 
+         * @param index frame index
+         * @return category
+         */
+        public int getCategory(int index) {
+            return value(index, 4);
+        }
+
+        /**
+         * Returns the status of a frame, e.g. {@link #STATUS_FOCUSED}.
+         * 
+         * @param index frame index
+         * @return status
+         */
+        public int getStatus(int index) {
+            return value(index, 5);
+        }
+
+        /**
+         * Returns the additional status of a frame.
+         * 
+         * @param index frame index
+         * @return additional status
+         */
+        public int getAdditionalStatus(int index) {
+            return value(index, 6);
+        }
+
+        /**
+         * Copies all values into another instance, reusing its storage.
+         * 
+         * @param target destination
+         */
+        public void copyTo(FrameInfo target) {
+            target.mSequenceNumber = mSequenceNumber;
+            target.mTimeStamp = mTimeStamp;
+            target.mVersion = mVersion;
+            target.ensureCapacity(mCount);
+            System.arraycopy(mValues, 0, target.mValues, 0,
+                    mCount * VALUES_PER_FRAME);
+            target.mCount = mCount;
+        }
+
+        private static final int VALUES_PER_FRAME = 7;
+
+        private int value(int index, int field) {
+            if (index < 0 || index >= mCount) {
+                throw new IndexOutOfBoundsException("frame " + index + " of "
+                        + mCount);
+            }
+            return mValues[index * VALUES_PER_FRAME + field];
+        }
+
+        private void ensureCapacity(int count) {
+            if (mValues.length < count * VALUES_PER_FRAME) {
+                mValues = new int[count * VALUES_PER_FRAME];
+            }
+        }
+    }
+
+    /** Listener for frame information Packets. */
+    public interface FrameInfoListener {
+
+        /**
+         * Called by the thread that calls {@link #nextPayload()} for each
+         * frame information Packet. The instance is reused after this method
+         * returns.
+         * 
+         * @param frameInfo decoded frame information
+         */
+        public void onFrameInfo(FrameInfo frameInfo);
+    }
+
     private static final int CONNECTION_TIMEOUT = 2000; // [msec]
 
+    // Frame information record layout
+    private static final int FRAME_INFO_MIN_SIZE = 2 + 2 + 2 + 2 + 1 + 1 + 1;
+
+    private static final int COMMON_HEADER_SIZE = 1 + 1 + 2 + 4;
+    private static final int PAYLOAD_HEADER_SIZE = 4 + 3 + 1 + 4 + 1 + 115;
+    private static final int HEADER_SIZE = COMMON_HEADER_SIZE
+            + PAYLOAD_HEADER_SIZE;
+
+    // Largest payload data accepted in resync mode. A header found by
+    // scanning corrupt data may declare any size up to 16 MiB; real frames
+    // are far smaller.
+    private static final int MAX_RESYNC_DATA_SIZE = 1024 * 1024;
+
+    private static final byte START_BYTE = (byte) 0xFF;
+    private static final byte PAYLOAD_TYPE_JPEG = (byte) 0x01;
+    private static final byte PAYLOAD_TYPE_FRAME_INFO = (byte) 0x02;
+    private static final byte[] START_CODE = {
+            (byte) 0x24, (byte) 0x35, (byte) 0x68, (byte) 0x79
+    };
+
     private HttpURLConnection mHttpConn;
-    private InputStream mInputStream;
+    private volatile InputStream mInputStream;
+
+    // Common Header and Payload Header of the current Packet.
+    private final byte[] mHeader = new byte[HEADER_SIZE];
+    private byte[] mSkipBuffer;
+    private byte[] mFrameInfoBuffer = new byte[0];
+    private final FrameInfo mFrameInfo = new FrameInfo();
+    private volatile FrameInfoListener mFrameInfoListener;
+
+    private volatile boolean mResyncEnabled = false;
+    private volatile int mResyncCount = 0;
+    private volatile long mSkippedBytes = 0;
 
     /**
      * Opens Liveview HTTP GET connection and prepares for reading Packet data.
@@ -66,6 +292,22 @@ public class SimpleLiveviewSlicer {
         }
     }
 
+    /**
+     * Prepares for reading Packet data from an already open stream, e.g. a
+     * recorded liveview stream. The stream is closed by {@link #close()}.
+     * 
+     * @param inputStream stream of liveview Packets
+     */
+    public void open(InputStream inputStream) {
+        if (mInputStream != null || mHttpConn != null) {
+            throw new IllegalStateException("Slicer is already open.");
+        }
+        if (inputStream == null) {
+            throw new NullPointerException("inputStream is null.");
+        }
+        mInputStream = inputStream;
+    }
+
     /**
      * Closes the connection.
      * 
@@ -82,6 +324,58 @@ public class SimpleLiveviewSlicer {
         }
     }
 
+    /**
+     * Sets a listener for frame information Packets. Without a listener these
+     * Packets are skipped.
+     * 
+     * @param listener listener or null
+     */
+    public void setFrameInfoListener(FrameInfoListener listener) {
+        mFrameInfoListener = listener;
+    }
+
+    /**
+     * Enables or disables resync mode. If enabled, a corrupt Packet does not
+     * fail {@link #nextPayload()}; instead the stream is scanned forward for
+     * the next valid header and the damaged data is skipped. Headers that
+     * declare more than 1 MiB of payload data are taken as false matches.
+     * Packets of unknown payload types are skipped by their declared size.
+     * Disabled by default.
+     * 
+     * @param enabled true to enable resync mode
+     */
+    public void setResyncEnabled(boolean enabled) {
+        mResyncEnabled = enabled;
+    }
+
+    /**
+     * Checks to see whether resync mode is enabled.
+     * 
+     * @return true if enabled
+     */
+    public boolean isResyncEnabled() {
+        return mResyncEnabled;
+    }
+
+    /**
+     * Returns how many times the parser had to resynchronize to the stream.
+     * 
+     * @return number of resync events
+     */
+    public int getResyncCount() {
+        return mResyncCount;
+    }
+
+    /**
+     * Returns how many bytes were discarded while resynchronizing, including
+     * Packets of unknown payload type.
+     * 
+     * @return number of skipped bytes
+     */
+    public long getSkippedBytes() {
+        return mSkippedBytes;
+    }
+
     /**
      * Reads liveview stream and slice one Packet. If server is not ready for
      * liveview data, this API calling will be blocked until server returns next
@@ -91,42 +385,179 @@ public class SimpleLiveviewSlicer {
      * @throws java.io.IOException generic errors or exception.
      */
     public Payload nextPayload() throws IOException {
-        if (mInputStream != null) {
-            // Common Header
-            int readLength = 1 + 1 + 2 + 4;
-            byte[] commonHeader = readBytes(mInputStream, readLength);
-            if (commonHeader == null || commonHeader.length != readLength) {
-                throw new IOException("Cannot read stream for common header.");
+        // The stream may be closed by another thread while reading.
+        final InputStream in = mInputStream;
+        if (in != null) {
+            while (true) {
+                // Common Header and Payload Header
+                readHeader(in);
+                int sequenceNumber = (int) bytesToLong(mHeader, 2, 2);
+                long timeStamp = bytesToLong(mHeader, 4, 4);
+                int jpegSize = bytesToInt(mHeader, COMMON_HEADER_SIZE + 4, 3);
+                int paddingSize = bytesToInt(mHeader, COMMON_HEADER_SIZE + 7, 1);
+
+                if (mHeader[1] == PAYLOAD_TYPE_FRAME_INFO) {
+                    FrameInfoListener listener = mFrameInfoListener;
+                    if (listener != null) {
+                        readFrameInfo(in, jpegSize, sequenceNumber, timeStamp);
+                        skipBytes(in, paddingSize);
+                        listener.onFrameInfo(mFrameInfo);
+                    } else {
+                        skipBytes(in, jpegSize + paddingSize);
+                    }
+                    continue;
+                }
+                if (mHeader[1] != PAYLOAD_TYPE_JPEG) {
+                    // only reachable in resync mode
+                    skipBytes(in, jpegSize + paddingSize);
+                    mSkippedBytes += HEADER_SIZE + jpegSize + paddingSize;
+                    continue;
+                }
+
+                // Payload Data
+                byte[] jpegData = new byte[jpegSize];
+                byte[] paddingData = new byte[paddingSize];
+                if (!readFully(in, jpegData, 0, jpegSize)
+                        || !readFully(in, paddingData, 0, paddingSize)) {
+                    throw new IOException("Cannot read stream for payload data.");
+                }
+
+                return new Payload(jpegData, paddingData, sequenceNumber,
+                        timeStamp);
             }
-            if (commonHeader[0] != (byte) 0xFF) {
+        }
+        return null;
+    }
+
+    // Reads Common Header and Payload Header into mHeader. In resync mode
+    // scans forward until a valid header is found.
+    private void readHeader(InputStream in) throws IOException {
+        if (!mResyncEnabled) {
+            readCommonHeader(in, 0);
+            if (mHeader[0] != START_BYTE) {
                 throw new IOException("Unexpected data format. (Start byte)");
             }
-            if (commonHeader[1] != (byte) 0x01) {
+            if (mHeader[1] != PAYLOAD_TYPE_JPEG
+                    && mHeader[1] != PAYLOAD_TYPE_FRAME_INFO) {
                 throw new IOException("Unexpected data format. (Payload byte)");
             }
+            readPayloadHeader(in, COMMON_HEADER_SIZE);
+            if (!startCodeAt(COMMON_HEADER_SIZE)) {
+                throw new IOException("Unexpected data format. (Start code)");
+            }
+            return;
+        }
 
-            // Payload Header
-            readLength = 4 + 3 + 1 + 4 + 1 + 115;
-            byte[] payloadHeader = readBytes(mInputStream, readLength);
-            if (payloadHeader == null || payloadHeader.length != readLength) {
-                throw new IOException("Cannot read stream for payload header.");
+        readCommonHeader(in, 0);
+        readPayloadHeader(in, COMMON_HEADER_SIZE);
+
+        boolean resynced = false;
+        while (true) {
+            int start = findHeaderCandidate();
+            if (start == 0) {
+                if (bytesToInt(mHeader, COMMON_HEADER_SIZE + 4, 3)
+                        <= MAX_RESYNC_DATA_SIZE) {
+                    break;
+                }
+                // A false match inside corrupt data, keep scanning.
+                start = 1;
             }
-            if (payloadHeader[0] != (byte) 0x24
-                    || payloadHeader[1] != (byte) 0x35
-                    || payloadHeader[2] != (byte) 0x68
-                    || payloadHeader[3] != (byte) 0x79) {
-                throw new IOException("Unexpected data format. (Start code)");
+            resynced = true;
+            int kept = HEADER_SIZE - start;
+            System.arraycopy(mHeader, start, mHeader, 0, kept);
+            if (kept < COMMON_HEADER_SIZE) {
+                readCommonHeader(in, kept);
+                kept = COMMON_HEADER_SIZE;
             }
-            int jpegSize = bytesToInt(payloadHeader, 4, 3);
-            int paddingSize = bytesToInt(payloadHeader, 7, 1);
+            readPayloadHeader(in, kept);
+            mSkippedBytes += start;
+        }
+        if (resynced) {
+            mResyncCount++;
+        }
+    }
 
-            // Payload Data
-            byte[] jpegData = readBytes(mInputStream, jpegSize);
-            byte[] paddingData = readBytes(mInputStream, paddingSize);
+    // Reads mHeader from the offset up to the end of the Common Header.
+    private void readCommonHeader(InputStream in, int offset)
+            throws IOException {
+        if (!readFully(in, mHeader, offset, COMMON_HEADER_SIZE - offset)) {
+            throw new IOException("Cannot read stream for common header.");
+        }
+    }
 
-            return new Payload(jpegData, paddingData);
+    // Reads mHeader from the offset up to the end of the Payload Header.
+    private void readPayloadHeader(InputStream in, int offset)
+            throws IOException {
+        if (!readFully(in, mHeader, offset, HEADER_SIZE - offset)) {
+            throw new IOException("Cannot read stream for payload header.");
         }
-        return null;
+    }
+
+    // Decodes a frame information payload into mFrameInfo. Version, frame
+    // count and record size come from the payload header in mHeader.
+    private void readFrameInfo(InputStream in, int dataSize,
+            int sequenceNumber, long timeStamp) throws IOException {
+        if (mFrameInfoBuffer.length < dataSize) {
+            mFrameInfoBuffer = new byte[dataSize];
+        }
+        if (!readFully(in, mFrameInfoBuffer, 0, dataSize)) {
+            throw new IOException("Cannot read stream for payload data.");
+        }
+
+        int version = bytesToInt(mHeader, COMMON_HEADER_SIZE + 8, 2);
+        int count = bytesToInt(mHeader, COMMON_HEADER_SIZE + 10, 2);
+        int recordSize = bytesToInt(mHeader, COMMON_HEADER_SIZE + 12, 2);
+        if (recordSize < FRAME_INFO_MIN_SIZE) {
+            count = 0;
+        } else {
+            count = Math.min(count, dataSize / recordSize);
+        }
+
+        FrameInfo info = mFrameInfo;
+        info.mSequenceNumber = sequenceNumber;
+        info.mTimeStamp = timeStamp;
+        info.mVersion = version;
+        info.ensureCapacity(count);
+        int[] values = info.mValues;
+        for (int i = 0, offset = 0; i < count; i++, offset += recordSize) {
+            int v = i * FrameInfo.VALUES_PER_FRAME;
+            values[v] = bytesToInt(mFrameInfoBuffer, offset, 2);
+            values[v + 1] = bytesToInt(mFrameInfoBuffer, offset + 2, 2);
+            values[v + 2] = bytesToInt(mFrameInfoBuffer, offset + 4, 2);
+            values[v + 3] = bytesToInt(mFrameInfoBuffer, offset + 6, 2);
+            values[v + 4] = mFrameInfoBuffer[offset + 8] & 0xff;
+            values[v + 5] = mFrameInfoBuffer[offset + 9] & 0xff;
+            values[v + 6] = mFrameInfoBuffer[offset + 10] & 0xff;
+        }
+        info.mCount = count;
+    }
+
+    // Returns the offset of the first position in mHeader that may start a
+    // valid header, as far as the buffered bytes tell, or HEADER_SIZE if
+    // there is none. Any payload type is accepted, so that Packets of unknown
+    // types are skipped by their size in nextPayload() rather than scanned.
+    private int findHeaderCandidate() {
+        for (int i = 0; i < HEADER_SIZE; i++) {
+            if (mHeader[i] != START_BYTE) {
+                continue;
+            }
+            if (!startCodeAt(i + COMMON_HEADER_SIZE)) {
+                continue;
+            }
+            return i;
+        }
+        return HEADER_SIZE;
+    }
+
+    // Checks the payload start code at the offset. Bytes beyond the buffer
+    // are treated as matching.
+    private boolean startCodeAt(int offset) {
+        for (int i = 0; i < START_CODE.length && offset + i < HEADER_SIZE; i++) {
+            if (mHeader[offset + i] != START_CODE[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     // Converts byte array to int.
@@ -138,25 +569,43 @@ public class SimpleLiveviewSlicer {
         return ret;
     }
 
-    // Reads byte array from the indicated input stream.
-    private static byte[] readBytes(InputStream in, int length)
-            throws IOException {
-        ByteArrayOutputStream tmpByteArray = new ByteArrayOutputStream();
-        byte[] buffer = new byte[1024];
-        while (true) {
-            int trialReadlen = Math.min(buffer.length,
-                    length - tmpByteArray.size());
-            int readlen = in.read(buffer, 0, trialReadlen);
+    // Converts byte array to long. Used for unsigned 32 bit values.
+    private static long bytesToLong(byte[] byteData, int startIndex,
+            int count) {
+        long ret = 0;
+        for (int i = startIndex; i < startIndex + count; i++) {
+            ret = (ret << 8) | (byteData[i] & 0xff);
+        }
+        return ret;
+    }
+
+    // Reads exactly length bytes into the buffer. Returns false on end of
+    // stream.
+    private static boolean readFully(InputStream in, byte[] buffer,
+            int offset, int length) throws IOException {
+        while (length > 0) {
+            int readlen = in.read(buffer, offset, length);
             if (readlen < 0) {
-                break;
+                return false;
             }
-            tmpByteArray.write(buffer, 0, readlen);
-            if (length <= tmpByteArray.size()) {
-                break;
+            offset += readlen;
+            length -= readlen;
+        }
+        return true;
+    }
+
+    // Reads and discards length bytes.
+    private void skipBytes(InputStream in, int length) throws IOException {
+        if (mSkipBuffer == null) {
+            mSkipBuffer = new byte[1024];
+        }
+        while (length > 0) {
+            int readlen = in.read(mSkipBuffer, 0,
+                    Math.min(mSkipBuffer.length, length));
+            if (readlen < 0) {
+                throw new IOException("Cannot read stream for payload data.");
             }
+            length -= readlen;
         }
-        byte[] ret = tmpByteArray.toByteArray();
-        tmpByteArray.close();
-        return ret;
     }
 }
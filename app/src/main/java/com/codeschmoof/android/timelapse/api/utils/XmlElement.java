@@ -13,13 +13,17 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
 /**
  * A simple XML parser and Data structure class for sample application.
+ * <p/>
+ * Elements keep their children and attributes in plain arrays, allocated
+ * only when there are any, and tag names are shared within a document.
+ * Elements with many children build a name index on the first lookup.
  */
 public class XmlElement {
 
@@ -27,23 +31,33 @@ public class XmlElement {
 
     private static final String TAG = XmlElement.class.getSimpleName();
 
-    protected String mTagName;
+    private static final XmlElement[] NO_CHILDREN = new XmlElement[0];
 
-    protected String mValue;
+    // Children that are scanned before an index is built.
+    private static final int INDEX_THRESHOLD = 8;
 
-    protected LinkedList<XmlElement> mChildElements;
+    private String mTagName;
 
-    protected Map<String, String> mAttributes;
+    private String mValue;
 
-    protected XmlElement mParentElement;
+    private XmlElement[] mChildElements;
+
+    private int mChildCount;
+
+    // name, value, name, value, ...
+    private String[] mAttributes;
+
+    private XmlElement mParentElement;
+
+    // name -> children of the name, built on demand
+    private volatile Map<String, XmlElement[]> mChildIndex;
 
     /**
      * Constructor. Creates new empty element.
      */
     public XmlElement() {
         mParentElement = null;
-        mChildElements = new LinkedList<XmlElement>();
-        mAttributes = new HashMap<String, String>();
+        mChildElements = NO_CHILDREN;
         mValue = "";
     }
 
@@ -93,8 +107,17 @@ public class XmlElement {
         }
     }
 
-    private void putAttribute(String name, String value) {
-        mAttributes.put(name, value);
+    // Sets the attributes of a start tag.
+    private void setAttributes(XmlPullParser xmlPullParser) {
+        int count = xmlPullParser.getAttributeCount();
+        if (count <= 0) {
+            return;
+        }
+        mAttributes = new String[count * 2];
+        for (int i = 0; i < count; i++) {
+            mAttributes[i * 2] = xmlPullParser.getAttributeName(i);
+            mAttributes[i * 2 + 1] = xmlPullParser.getAttributeValue(i);
+        }
     }
 
     /**
@@ -106,7 +129,7 @@ public class XmlElement {
      * @return a value of the attribute or the default value
      */
     public String getAttribute(String name, String defaultValue) {
-        String ret = mAttributes.get(name);
+        String ret = findAttribute(name);
         if (ret == null) {
             ret = defaultValue;
         }
@@ -122,7 +145,7 @@ public class XmlElement {
      * @return a value of the attribute or the default value
      */
     public int getIntAttribute(String name, int defaultValue) {
-        String attrValue = mAttributes.get(name);
+        String attrValue = findAttribute(name);
         if (attrValue == null) {
             return defaultValue;
         } else {
@@ -134,11 +157,41 @@ public class XmlElement {
         }
     }
 
+    // Returns the value of the last attribute of the name, like a map would.
+    private String findAttribute(String name) {
+        if (mAttributes == null || name == null) {
+            return null;
+        }
+        for (int i = mAttributes.length - 2; i >= 0; i -= 2) {
+            if (name.equals(mAttributes[i])) {
+                return mAttributes[i + 1];
+            }
+        }
+        return null;
+    }
+
     private void putChild(XmlElement childItem) {
-        mChildElements.add(childItem);
+        if (mChildCount == mChildElements.length) {
+            XmlElement[] children = new XmlElement[Math.max(4,
+                    mChildCount * 2)];
+            System.arraycopy(mChildElements, 0, children, 0, mChildCount);
+            mChildElements = children;
+        }
+        mChildElements[mChildCount++] = childItem;
         childItem.setParent(this);
     }
 
+    // Drops the unused capacity once all children are added.
+    private void trimChildren() {
+        if (mChildCount == 0) {
+            mChildElements = NO_CHILDREN;
+        } else if (mChildCount < mChildElements.length) {
+            XmlElement[] children = new XmlElement[mChildCount];
+            System.arraycopy(mChildElements, 0, children, 0, mChildCount);
+            mChildElements = children;
+        }
+    }
+
     /**
      * Returns a child XML element. If a child element is not found, returns an
      * empty element instead of null.
@@ -147,10 +200,13 @@ public class XmlElement {
      * @return an element
      */
     public XmlElement findChild(String name) {
-
-        for (final XmlElement child : mChildElements) {
-            if (child.getTagName().equals(name)) {
-                return child;
+        if (mChildCount > INDEX_THRESHOLD) {
+            XmlElement[] children = getChildIndex().get(name);
+            return children != null ? children[0] : NULL_ELEMENT;
+        }
+        for (int i = 0; i < mChildCount; i++) {
+            if (mChildElements[i].getTagName().equals(name)) {
+                return mChildElements[i];
             }
         }
         return NULL_ELEMENT;
@@ -164,15 +220,47 @@ public class XmlElement {
      * @return a list of child elements
      */
     public List<XmlElement> findChildren(String name) {
+        if (mChildCount > INDEX_THRESHOLD) {
+            XmlElement[] children = getChildIndex().get(name);
+            if (children == null) {
+                return new ArrayList<XmlElement>();
+            }
+            return new ArrayList<XmlElement>(Arrays.asList(children));
+        }
         final List<XmlElement> tagItemList = new ArrayList<XmlElement>();
-        for (final XmlElement child : mChildElements) {
-            if (child.getTagName().equals(name)) {
-                tagItemList.add(child);
+        for (int i = 0; i < mChildCount; i++) {
+            if (mChildElements[i].getTagName().equals(name)) {
+                tagItemList.add(mChildElements[i]);
             }
         }
         return tagItemList;
     }
 
+    // Returns the name index of the children, building it on first use.
+    private Map<String, XmlElement[]> getChildIndex() {
+        Map<String, XmlElement[]> index = mChildIndex;
+        if (index != null) {
+            return index;
+        }
+        Map<String, List<XmlElement>> lists = new HashMap<String, List<XmlElement>>();
+        for (int i = 0; i < mChildCount; i++) {
+            XmlElement child = mChildElements[i];
+            List<XmlElement> list = lists.get(child.getTagName());
+            if (list == null) {
+                list = new ArrayList<XmlElement>(2);
+                lists.put(child.getTagName(), list);
+            }
+            list.add(child);
+        }
+        index = new HashMap<String, XmlElement[]>(lists.size() * 2);
+        for (Map.Entry<String, List<XmlElement>> entry : lists.entrySet()) {
+            index.put(entry.getKey(), entry.getValue().toArray(
+                    new XmlElement[entry.getValue().size()]));
+        }
+        mChildIndex = index;
+        return index;
+    }
+
     /**
      * Returns the parent element of this one.
      * 
@@ -204,6 +292,8 @@ public class XmlElement {
     public static XmlElement parse(XmlPullParser xmlPullParser) {
 
         XmlElement rootElement = XmlElement.NULL_ELEMENT;
+        // One instance per tag name in the document.
+        Map<String, String> tagNames = new HashMap<String, String>();
         try {
             XmlElement parsingElement = XmlElement.NULL_ELEMENT;
             MAINLOOP: while (true) {
@@ -212,7 +302,13 @@ public class XmlElement {
                         break;
                     case XmlPullParser.START_TAG:
                         final XmlElement childItem = new XmlElement();
-                        childItem.setTagName(xmlPullParser.getName());
+                        String name = xmlPullParser.getName();
+                        String tagName = tagNames.get(name);
+                        if (tagName == null) {
+                            tagName = name;
+                            tagNames.put(name, name);
+                        }
+                        childItem.setTagName(tagName);
                         if (parsingElement == XmlElement.NULL_ELEMENT) {
                             rootElement = childItem;
                         } else {
@@ -221,16 +317,13 @@ public class XmlElement {
                         parsingElement = childItem;
 
                         // Set Attribute
-                        for (int i = 0; i < xmlPullParser.getAttributeCount(); i++) {
-                            parsingElement.putAttribute(
-                                    xmlPullParser.getAttributeName(i),
-                                    xmlPullParser.getAttributeValue(i));
-                        }
+                        parsingElement.setAttributes(xmlPullParser);
                         break;
                     case XmlPullParser.TEXT:
                         parsingElement.setValue(xmlPullParser.getText());
                         break;
                     case XmlPullParser.END_TAG:
+                        parsingElement.trimChildren();
                         parsingElement = parsingElement.getParent();
                         break;
                     case XmlPullParser.END_DOCUMENT:
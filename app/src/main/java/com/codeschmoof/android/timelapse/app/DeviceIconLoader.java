@@ -0,0 +1,221 @@
+package com.codeschmoof.android.timelapse.app;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.codeschmoof.android.timelapse.api.ServerDevice;
+import com.codeschmoof.android.timelapse.api.utils.SimpleHttpClient;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Loads the icons of devices in the background and keeps them in two levels: a bounded
+ * in-memory LRU of decoded bitmaps and a directory of the downloaded files. Both are keyed
+ * by UDN plus icon URL, so an icon is downloaded once per device and found again on later
+ * launches without network access.
+ */
+public class DeviceIconLoader {
+    private static final String TAG = DeviceIconLoader.class.getSimpleName();
+
+    private static final String CACHE_DIR = "device-icons";
+    private static final int MEMORY_CACHE_SIZE = 1024 * 1024; // [bytes]
+    private static final int MAX_DISK_ENTRIES = 32;
+    private static final int LOAD_THREADS = 3;
+
+    /** Receives loaded icons. Called on a background thread. */
+    public interface Listener {
+        void onIconLoaded(ServerDevice device, Bitmap icon);
+    }
+
+    private final File cacheDir;
+    private final Listener listener;
+    private final LruCache<String, Bitmap> memoryCache = new LruCache<String, Bitmap>(MEMORY_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getRowBytes() * value.getHeight();
+        }
+    };
+    private final Set<String> pending = new HashSet<String>();
+    private final ExecutorService executor = Executors.newFixedThreadPool(LOAD_THREADS);
+
+    public DeviceIconLoader(Context context, Listener listener) {
+        this.cacheDir = new File(context.getCacheDir(), CACHE_DIR);
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the icon if it is in memory. Otherwise starts loading it and returns null; the
+     * listener is called once it is there.
+     */
+    public Bitmap getIcon(ServerDevice device) {
+        final String key = key(device);
+        if (key == null) {
+            return null;
+        }
+        final Bitmap icon = memoryCache.get(key);
+        if (icon == null) {
+            prefetch(device);
+        }
+        return icon;
+    }
+
+    /**
+     * Starts loading the icon unless it is in memory or already loading. Several icons load in
+     * parallel.
+     */
+    public void prefetch(final ServerDevice device) {
+        final String key = key(device);
+        if (key == null || memoryCache.get(key) != null) {
+            return;
+        }
+        synchronized (pending) {
+            if (!pending.add(key)) {
+                return;
+            }
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        load(key, device);
+                    } finally {
+                        synchronized (pending) {
+                            pending.remove(key);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // shut down
+            synchronized (pending) {
+                pending.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Stops loading. Icons in memory stay available.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void load(String key, ServerDevice device) {
+        final File file = new File(cacheDir, key);
+        Bitmap icon = null;
+        if (file.exists()) {
+            icon = BitmapFactory.decodeFile(file.getPath());
+            if (icon == null) {
+                Log.w(TAG, "load() broken cache file: " + key);
+                file.delete();
+            }
+        }
+        if (icon == null) {
+            final byte[] data = download(device.getIconUrl());
+            if (data == null) {
+                return;
+            }
+            icon = BitmapFactory.decodeByteArray(data, 0, data.length);
+            if (icon == null) {
+                Log.w(TAG, "load() cannot decode " + device.getIconUrl());
+                return;
+            }
+            store(file, data);
+        }
+        memoryCache.put(key, icon);
+        listener.onIconLoaded(device, icon);
+    }
+
+    private static byte[] download(String url) {
+        InputStream in = null;
+        try {
+            in = SimpleHttpClient.httpGetStream(url);
+            return ByteStreams.toByteArray(in);
+        } catch (IOException e) {
+            Log.w(TAG, "download() failed: " + url);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "IOException while closing InputStream");
+                }
+            }
+        }
+    }
+
+    // Writes the file atomically and drops the oldest files beyond MAX_DISK_ENTRIES.
+    private void store(File file, byte[] data) {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            Log.w(TAG, "store() cannot create " + cacheDir);
+            return;
+        }
+        final File tmp = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(data);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "store() rename failed.");
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "store() write failed.", e);
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "IOException while closing OutputStream");
+                }
+            }
+        }
+
+        synchronized (this) {
+            final File[] files = cacheDir.listFiles();
+            if (files != null && files.length > MAX_DISK_ENTRIES) {
+                Arrays.sort(files, new Comparator<File>() {
+                    @Override
+                    public int compare(File a, File b) {
+                        final long diff = a.lastModified() - b.lastModified();
+                        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                    }
+                });
+                for (int i = 0; i < files.length - MAX_DISK_ENTRIES; i++) {
+                    files[i].delete();
+                }
+            }
+        }
+    }
+
+    // Cache key of a device's icon, usable as a file name, or null if it has none.
+    private static String key(ServerDevice device) {
+        final String url = device.getIconUrl();
+        if (url == null || url.length() == 0) {
+            return null;
+        }
+        final String udn = device.getUDN() != null ? device.getUDN() : "";
+        return Hashing.sha1().hashString(udn + '\n' + url).toString();
+    }
+}
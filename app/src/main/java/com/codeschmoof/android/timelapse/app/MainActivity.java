@@ -4,12 +4,16 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.support.v7.app.ActionBarActivity;
 import android.text.Html;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -22,16 +26,29 @@ import android.widget.ListView;
 import android.widget.TextView;
 
 import com.codeschmoof.android.timelapse.R;
+import com.codeschmoof.android.timelapse.api.DirectProbeDiscovery;
+import com.codeschmoof.android.timelapse.api.DiscoveryCache;
 import com.codeschmoof.android.timelapse.api.ServerDevice;
 import com.codeschmoof.android.timelapse.api.SimpleSsdpClient;
+import com.codeschmoof.android.timelapse.api.SsdpNotifyListener;
 import com.codeschmoof.android.timelapse.service.TimelapseService;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 
 
 public class MainActivity extends ActionBarActivity {
+    private static final String TAG = MainActivity.class.getSimpleName();
+    private static final String DISCOVERY_CACHE_FILE = "discovery-cache.json";
+    private static final long SEARCH_IDLE_GAP = 1500; // [msec]
+
     private final SimpleSsdpClient ssdpClient = new SimpleSsdpClient();
+    private DiscoveryCache discoveryCache;
+    private SsdpNotifyListener notifyListener;
+    private WifiManager.MulticastLock multicastLock;
+    private DeviceIconLoader iconLoader;
 
     private LocalServiceConnection connection = new LocalServiceConnection();
     private volatile TimelapseService service = null;
@@ -64,7 +81,49 @@ public class MainActivity extends ActionBarActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        deviceListAdapter = new DeviceListAdapter(this);
+        iconLoader = new DeviceIconLoader(this, new DeviceIconLoader.Listener() {
+            @Override
+            public void onIconLoaded(ServerDevice device, Bitmap icon) {
+                MainActivity.this.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        deviceListAdapter.notifyDataSetChanged();
+                    }
+                });
+            }
+        });
+        deviceListAdapter = new DeviceListAdapter(this, iconLoader);
+
+        discoveryCache = new DiscoveryCache(new File(getFilesDir(), DISCOVERY_CACHE_FILE));
+        ssdpClient.setCache(discoveryCache);
+
+        // Keep the device list up to date with the cameras' own announcements.
+        notifyListener = new SsdpNotifyListener(new SsdpNotifyListener.DeviceListener() {
+            @Override
+            public void onDeviceAdded(final ServerDevice device) {
+                iconLoader.prefetch(device);
+                MainActivity.this.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        deviceListAdapter.addDevice(device);
+                    }
+                });
+            }
+
+            @Override
+            public void onDeviceRemoved(final ServerDevice device) {
+                MainActivity.this.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        deviceListAdapter.removeDevice(device);
+                    }
+                });
+            }
+        });
+        notifyListener.setCache(discoveryCache);
+        final WifiManager wifiManager = (WifiManager) getSystemService(WIFI_SERVICE);
+        multicastLock = wifiManager.createMulticastLock(MainActivity.class.getSimpleName());
+        multicastLock.setReferenceCounted(false);
     }
 
     @Override
@@ -93,6 +152,31 @@ public class MainActivity extends ActionBarActivity {
 
         // Show Wi-Fi SSID.
         updateSSID();
+
+        // Offer the device seen last time as soon as it answers.
+        if (getSearchButton().isEnabled()) {
+            offerCachedDevices();
+        }
+
+        // Wi-Fi drops multicast packets unless the lock is held.
+        multicastLock.acquire();
+        notifyListener.start();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+
+        notifyListener.stop();
+        multicastLock.release();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        ssdpClient.close();
+        iconLoader.shutdown();
     }
 
     @Override
@@ -117,9 +201,12 @@ public class MainActivity extends ActionBarActivity {
     private void startSearch() {
         getSearchButton().setEnabled(false);
 
+        // Finish once the replies have died down instead of waiting for the full receive timeout.
         ssdpClient.search(new SimpleSsdpClient.SearchResultHandler() {
             @Override
             public void onDeviceFound(final ServerDevice device) {
+                iconLoader.prefetch(device);
+                notifyListener.addDevice(device, getMaxAge(device));
                 MainActivity.this.runOnUiThread(new Runnable() {
                     @Override
                     public void run() {
@@ -148,7 +235,52 @@ public class MainActivity extends ActionBarActivity {
                     }
                 });
             }
-        });
+        }, SimpleSsdpClient.SearchCondition.idleGap(SEARCH_IDLE_GAP));
+    }
+
+    private void offerCachedDevices() {
+        getSearchButton().setEnabled(false);
+
+        new Thread() {
+            @Override
+            public void run() {
+                // Race the remembered addresses against an SSDP search.
+                discoveryCache.load();
+                // Icons of remembered cameras come from disk meanwhile.
+                for (DiscoveryCache.Entry entry : discoveryCache.getFreshEntries()) {
+                    iconLoader.prefetch(entry.getDevice());
+                }
+                ServerDevice found = null;
+                try {
+                    found = new DirectProbeDiscovery(ssdpClient, discoveryCache).discover().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "offerCachedDevices() failed.", e);
+                }
+
+                final ServerDevice device = found;
+                if (device != null) {
+                    notifyListener.addDevice(device, getMaxAge(device));
+                }
+                MainActivity.this.runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (device != null) {
+                            deviceListAdapter.addDevice(device);
+                        }
+                        getSearchButton().setEnabled(true);
+                    }
+                });
+            }
+        }.start();
+    }
+
+    // Searches and probes store the device in the cache with the max-age of its
+    // announcement before reporting it.
+    private int getMaxAge(ServerDevice device) {
+        final DiscoveryCache.Entry entry = discoveryCache.findEntry(device);
+        return entry != null ? entry.getMaxAge() : DiscoveryCache.DEFAULT_MAX_AGE;
     }
 
     private void connectToDevice(final ServerDevice deviceInfo) {
@@ -197,17 +329,41 @@ public class MainActivity extends ActionBarActivity {
 
         private final List<ServerDevice> mDeviceList;
         private final LayoutInflater mInflater;
+        private final Resources mResources;
+        private final DeviceIconLoader mIconLoader;
 
-        public DeviceListAdapter(Context context) {
+        public DeviceListAdapter(Context context, DeviceIconLoader iconLoader) {
             mDeviceList = new ArrayList<ServerDevice>();
             mInflater = LayoutInflater.from(context);
+            mResources = context.getResources();
+            mIconLoader = iconLoader;
         }
 
         public void addDevice(ServerDevice device) {
+            // A cached device may be found again by searching.
+            for (int i = 0; i < mDeviceList.size(); i++) {
+                final String udn = mDeviceList.get(i).getUDN();
+                if (udn != null && udn.equals(device.getUDN())) {
+                    mDeviceList.set(i, device);
+                    notifyDataSetChanged();
+                    return;
+                }
+            }
             mDeviceList.add(device);
             notifyDataSetChanged();
         }
 
+        public void removeDevice(ServerDevice device) {
+            for (int i = 0; i < mDeviceList.size(); i++) {
+                final String udn = mDeviceList.get(i).getUDN();
+                if (udn != null && udn.equals(device.getUDN())) {
+                    mDeviceList.remove(i);
+                    notifyDataSetChanged();
+                    return;
+                }
+            }
+        }
+
         public void clearDevices() {
             mDeviceList.clear();
             notifyDataSetChanged();
@@ -248,6 +404,12 @@ public class MainActivity extends ActionBarActivity {
                     ip);
             textView.setText(Html.fromHtml(htmlLabel));
 
+            // Icon, once it's loaded
+            final Bitmap icon = mIconLoader.getIcon(item);
+            textView.setCompoundDrawablesWithIntrinsicBounds(
+                    icon != null ? new BitmapDrawable(mResources, icon) : null,
+                    null, null, null);
+
             return textView;
         }
     }
@@ -11,6 +11,7 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.SeekBar;
 import android.widget.TextView;
 
@@ -68,6 +69,8 @@ public class TimelapseActivity extends ActionBarActivity {
         //updateTimelapseUiState();
         getTimelapseSeekBar().setEnabled(false);
         getRepeatsSeekBar().setEnabled(false);
+        getMotionCheckBox().setEnabled(false);
+        getRecordCheckBox().setEnabled(false);
         getTimelapseButton().setEnabled(false);
 
         getTimelapseSeekBar().setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
@@ -104,6 +107,14 @@ public class TimelapseActivity extends ActionBarActivity {
             }
         });
 
+        getMotionCheckBox().setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                getRecordCheckBox().setEnabled(getMotionCheckBox().isChecked());
+                updateTimelapseText();
+            }
+        });
+
         getTimelapseButton().setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
@@ -149,8 +160,13 @@ public class TimelapseActivity extends ActionBarActivity {
         try {
             final int period = getTimelapseSeekBar().getProgress() + 1;
             final int repeats = getRepeatsSeekBar().getProgress() + 1;
-            final TimeSpan timeLeft = TimeSpan.of(period * repeats, TimeUnit.SECONDS);
-            final String text = String.format("%d s * %d = %s left", period, repeats, timeLeft.toString());
+            final String text;
+            if (getMotionCheckBox().isChecked()) {
+                text = String.format("up to %d shots, at least %d s apart", repeats, period);
+            } else {
+                final TimeSpan timeLeft = TimeSpan.of(period * repeats, TimeUnit.SECONDS);
+                text = String.format("%d s * %d = %s left", period, repeats, timeLeft.toString());
+            }
             getTimelapseTextView().setText(text);
         } catch (Throwable e) {
             e.printStackTrace();
@@ -164,6 +180,9 @@ public class TimelapseActivity extends ActionBarActivity {
                 getTimelapseButton().setText(R.string.button_start_timelapse);
                 getTimelapseSeekBar().setEnabled(true);
                 getRepeatsSeekBar().setEnabled(true);
+                getMotionCheckBox().setEnabled(true);
+                // the liveview only runs during a motion capture
+                getRecordCheckBox().setEnabled(getMotionCheckBox().isChecked());
                 break;
 
             case STOP_TIMELAPSE:
@@ -171,6 +190,8 @@ public class TimelapseActivity extends ActionBarActivity {
                 getTimelapseButton().setText(R.string.button_stop_timelapse);
                 getTimelapseSeekBar().setEnabled(false);
                 getRepeatsSeekBar().setEnabled(false);
+                getMotionCheckBox().setEnabled(false);
+                getRecordCheckBox().setEnabled(false);
                 break;
         }
 
@@ -182,13 +203,19 @@ public class TimelapseActivity extends ActionBarActivity {
         final TimelapseService s = service;
         final int period = getTimelapseSeekBar().getProgress() + 1;
         final int repeats = getRepeatsSeekBar().getProgress() + 1;
+        final boolean motion = getMotionCheckBox().isChecked();
+        final boolean record = getRecordCheckBox().isChecked();
 
         final Thread start = new Thread() {
             @Override
             public void run() {
                 switch (m) {
                     case START_TIMELAPSE:
-                        s.startCapture(period, repeats);
+                        if (motion) {
+                            s.startMotionCapture(period, repeats, record);
+                        } else {
+                            s.startCapture(period, repeats);
+                        }
                         break;
 
                     case STOP_TIMELAPSE:
@@ -204,6 +231,8 @@ public class TimelapseActivity extends ActionBarActivity {
         currentMode = service.getMode() != TimelapseService.Mode.CAPTURING ? Mode.START_TIMELAPSE : Mode.STOP_TIMELAPSE;
         getTimelapseSeekBar().setProgress(service.getPeriod() - 1);
         getRepeatsSeekBar().setProgress(service.getMaxRepeats() - 1);
+        getMotionCheckBox().setChecked(service.getCaptureType() == TimelapseService.CaptureType.MOTION);
+        getRecordCheckBox().setChecked(service.isRecordingLiveview());
         updateTimelapseUiState();
 
         service.addListener(progressListener);
@@ -229,6 +258,14 @@ public class TimelapseActivity extends ActionBarActivity {
         return (SeekBar) findViewById(R.id.seekBar_repeats);
     }
 
+    private CheckBox getMotionCheckBox() {
+        return (CheckBox) findViewById(R.id.checkBox_motion);
+    }
+
+    private CheckBox getRecordCheckBox() {
+        return (CheckBox) findViewById(R.id.checkBox_record_liveview);
+    }
+
     private class LocalServiceConnection implements ServiceConnection {
 
         @Override
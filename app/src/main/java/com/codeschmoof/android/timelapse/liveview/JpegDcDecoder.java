@@ -0,0 +1,477 @@
+package com.codeschmoof.android.timelapse.liveview;
+
+import java.io.IOException;
+
+/**
+ * Partial baseline JPEG decoder that only recovers the DC coefficient of each
+ * luminance block.
+ * <p/>
+ * The DC coefficient of an 8x8 block is eight times its mean value, so the
+ * DC terms alone give a 1/8 scale luminance image. AC coefficients still have
+ * to be Huffman decoded to find the block boundaries, but there is no
+ * dequantization, no IDCT, no chroma processing and no color conversion,
+ * which makes this cheap enough to meter every liveview frame.
+ * <p/>
+ * Only baseline and extended sequential Huffman JPEGs are supported, which
+ * is what the camera sends. Instances keep their tables between calls and
+ * are not thread safe.
+ */
+public class JpegDcDecoder {
+
+    private static final int MAX_COMPONENTS = 4;
+    private static final int LOOKAHEAD_BITS = 9;
+
+    // Canonical Huffman table with a lookahead table for short codes.
+    private static final class HuffmanTable {
+        // (code length << 8) | symbol, or 0 if the code is longer
+        final int[] lookahead = new int[1 << LOOKAHEAD_BITS];
+        final int[] maxCode = new int[18];
+        final int[] valueOffset = new int[17];
+        final byte[] symbols = new byte[256];
+        boolean defined;
+    }
+
+    private final int[] mQuantDc = new int[4];
+    private final HuffmanTable[] mDcTables = {
+            new HuffmanTable(), new HuffmanTable(), new HuffmanTable(), new HuffmanTable()
+    };
+    private final HuffmanTable[] mAcTables = {
+            new HuffmanTable(), new HuffmanTable(), new HuffmanTable(), new HuffmanTable()
+    };
+
+    // Frame
+    private int mWidth;
+    private int mHeight;
+    private int mComponentCount;
+    private final int[] mComponentIds = new int[MAX_COMPONENTS];
+    private final int[] mH = new int[MAX_COMPONENTS];
+    private final int[] mV = new int[MAX_COMPONENTS];
+    private final int[] mQuantTable = new int[MAX_COMPONENTS];
+    private int mRestartInterval;
+
+    // Scan
+    private int mScanCount;
+    private final int[] mScanComponents = new int[MAX_COMPONENTS];
+    private final HuffmanTable[] mScanDc = new HuffmanTable[MAX_COMPONENTS];
+    private final HuffmanTable[] mScanAc = new HuffmanTable[MAX_COMPONENTS];
+    private final int[] mPredictors = new int[MAX_COMPONENTS];
+
+    // Bit reader
+    private byte[] mData;
+    private int mPos;
+    private int mEnd;
+    private int mBitBuffer;
+    private int mBitCount;
+    private boolean mMarkerHit;
+
+    /**
+     * Decodes the luminance map of a JPEG image.
+     *
+     * @param jpeg JPEG data
+     * @param map result, reused between calls
+     * @throws IOException if the data is not a supported JPEG image
+     */
+    public void decode(byte[] jpeg, LuminanceMap map) throws IOException {
+        decode(jpeg, 0, jpeg.length, map);
+    }
+
+    /**
+     * Decodes the luminance map of a JPEG image.
+     *
+     * @param jpeg buffer holding the JPEG data
+     * @param offset start of the JPEG data
+     * @param length length of the JPEG data
+     * @param map result, reused between calls
+     * @throws IOException if the data is not a supported JPEG image
+     */
+    public void decode(byte[] jpeg, int offset, int length, LuminanceMap map)
+            throws IOException {
+        mData = jpeg;
+        mPos = offset;
+        mEnd = offset + length;
+        mComponentCount = 0;
+        mRestartInterval = 0;
+        try {
+            if (readByte() != 0xFF || readByte() != 0xD8) {
+                throw new IOException("Not a JPEG image. (SOI)");
+            }
+            while (true) {
+                int marker = nextMarker();
+                switch (marker) {
+                    case 0xC0: // SOF0 baseline
+                    case 0xC1: // SOF1 extended sequential
+                        readFrameHeader();
+                        break;
+                    case 0xC4:
+                        readHuffmanTables();
+                        break;
+                    case 0xDB:
+                        readQuantizationTables();
+                        break;
+                    case 0xDD:
+                        readUnsignedShort();
+                        mRestartInterval = readUnsignedShort();
+                        break;
+                    case 0xDA:
+                        readScanHeader();
+                        decodeScan(map);
+                        return;
+                    case 0xD9:
+                        throw new IOException("No scan in JPEG image.");
+                    default:
+                        if (marker >= 0xC2 && marker <= 0xCF && marker != 0xC4
+                                && marker != 0xC8 && marker != 0xCC) {
+                            throw new IOException("Unsupported JPEG process: 0x"
+                                    + Integer.toHexString(marker));
+                        }
+                        skipSegment();
+                        break;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Truncated JPEG image.");
+        } finally {
+            mData = null;
+        }
+    }
+
+    private int nextMarker() throws IOException {
+        int b = readByte();
+        if (b != 0xFF) {
+            throw new IOException("Marker expected.");
+        }
+        while (b == 0xFF) {
+            b = readByte();
+        }
+        return b;
+    }
+
+    private int readByte() {
+        if (mPos >= mEnd) {
+            throw new ArrayIndexOutOfBoundsException(mPos);
+        }
+        return mData[mPos++] & 0xFF;
+    }
+
+    private int readUnsignedShort() {
+        return (readByte() << 8) | readByte();
+    }
+
+    private void skipSegment() {
+        int length = readUnsignedShort();
+        mPos += length - 2;
+    }
+
+    private void readQuantizationTables() throws IOException {
+        int end = mPos + readUnsignedShort();
+        while (mPos < end) {
+            int pq = readByte();
+            int id = pq & 0x0F;
+            if (id > 3) {
+                throw new IOException("Invalid quantization table.");
+            }
+            if ((pq >> 4) == 0) {
+                mQuantDc[id] = readByte();
+                mPos += 63;
+            } else {
+                mQuantDc[id] = readUnsignedShort();
+                mPos += 126;
+            }
+        }
+    }
+
+    private void readHuffmanTables() throws IOException {
+        int end = mPos + readUnsignedShort();
+        int[] counts = new int[17];
+        while (mPos < end) {
+            int tc = readByte();
+            int id = tc & 0x0F;
+            if (id > 3) {
+                throw new IOException("Invalid Huffman table.");
+            }
+            HuffmanTable table = (tc >> 4) == 0 ? mDcTables[id] : mAcTables[id];
+            int total = 0;
+            for (int i = 1; i <= 16; i++) {
+                counts[i] = readByte();
+                total += counts[i];
+            }
+            if (total > 256) {
+                throw new IOException("Invalid Huffman table.");
+            }
+            for (int i = 0; i < total; i++) {
+                table.symbols[i] = (byte) readByte();
+            }
+            buildTable(table, counts);
+        }
+    }
+
+    private static void buildTable(HuffmanTable table, int[] counts) {
+        for (int i = 0; i < table.lookahead.length; i++) {
+            table.lookahead[i] = 0;
+        }
+        int code = 0;
+        int k = 0;
+        for (int length = 1; length <= 16; length++) {
+            table.valueOffset[length] = k - code;
+            for (int i = 0; i < counts[length]; i++) {
+                if (length <= LOOKAHEAD_BITS) {
+                    int shift = LOOKAHEAD_BITS - length;
+                    int entry = (length << 8) | (table.symbols[k] & 0xFF);
+                    for (int j = 0; j < (1 << shift); j++) {
+                        table.lookahead[(code << shift) | j] = entry;
+                    }
+                }
+                code++;
+                k++;
+            }
+            // largest code of this length, -1 if none
+            table.maxCode[length] = counts[length] == 0 ? -1 : code - 1;
+            code <<= 1;
+        }
+        table.maxCode[17] = Integer.MAX_VALUE;
+        table.defined = true;
+    }
+
+    private void readFrameHeader() throws IOException {
+        readUnsignedShort();
+        if (readByte() != 8) {
+            throw new IOException("Unsupported sample precision.");
+        }
+        mHeight = readUnsignedShort();
+        mWidth = readUnsignedShort();
+        mComponentCount = readByte();
+        if (mComponentCount < 1 || mComponentCount > MAX_COMPONENTS
+                || mWidth == 0 || mHeight == 0) {
+            throw new IOException("Unsupported frame header.");
+        }
+        for (int i = 0; i < mComponentCount; i++) {
+            mComponentIds[i] = readByte();
+            int hv = readByte();
+            mH[i] = Math.max(1, hv >> 4);
+            mV[i] = Math.max(1, hv & 0x0F);
+            mQuantTable[i] = readByte() & 0x03;
+        }
+    }
+
+    private void readScanHeader() throws IOException {
+        if (mComponentCount == 0) {
+            throw new IOException("Scan before frame header.");
+        }
+        readUnsignedShort();
+        mScanCount = readByte();
+        if (mScanCount < 1 || mScanCount > mComponentCount) {
+            throw new IOException("Invalid scan header.");
+        }
+        for (int i = 0; i < mScanCount; i++) {
+            int id = readByte();
+            int tables = readByte();
+            int component = -1;
+            for (int c = 0; c < mComponentCount; c++) {
+                if (mComponentIds[c] == id) {
+                    component = c;
+                }
+            }
+            if (component < 0) {
+                throw new IOException("Unknown scan component.");
+            }
+            mScanComponents[i] = component;
+            mScanDc[i] = mDcTables[(tables >> 4) & 0x03];
+            mScanAc[i] = mAcTables[tables & 0x03];
+            if (!mScanDc[i].defined || !mScanAc[i].defined) {
+                throw new IOException("Missing Huffman table.");
+            }
+        }
+        // spectral selection and successive approximation are fixed for
+        // sequential images
+        mPos += 3;
+    }
+
+    private void decodeScan(LuminanceMap map) throws IOException {
+        if (mScanComponents[0] != 0) {
+            throw new IOException("First scan does not contain luminance.");
+        }
+        int hMax = 1;
+        int vMax = 1;
+        for (int c = 0; c < mComponentCount; c++) {
+            hMax = Math.max(hMax, mH[c]);
+            vMax = Math.max(vMax, mV[c]);
+        }
+
+        // luminance blocks that cover the image
+        int lumaWidth = (mWidth * mH[0] + hMax - 1) / hMax;
+        int lumaHeight = (mHeight * mV[0] + vMax - 1) / vMax;
+        int blocksX = (lumaWidth + 7) / 8;
+        int blocksY = (lumaHeight + 7) / 8;
+        map.reset(blocksX, blocksY);
+
+        int mcusX;
+        int mcusY;
+        if (mScanCount == 1) {
+            // non-interleaved: one block per MCU
+            mcusX = blocksX;
+            mcusY = blocksY;
+        } else {
+            mcusX = (mWidth + 8 * hMax - 1) / (8 * hMax);
+            mcusY = (mHeight + 8 * vMax - 1) / (8 * vMax);
+        }
+
+        int quant = mQuantDc[mQuantTable[0]];
+        mBitBuffer = 0;
+        mBitCount = 0;
+        mMarkerHit = false;
+        for (int i = 0; i < mScanCount; i++) {
+            mPredictors[i] = 0;
+        }
+
+        int restartsLeft = mRestartInterval;
+        for (int my = 0; my < mcusY; my++) {
+            for (int mx = 0; mx < mcusX; mx++) {
+                if (mRestartInterval != 0) {
+                    if (restartsLeft == 0) {
+                        restart();
+                        restartsLeft = mRestartInterval;
+                    }
+                    restartsLeft--;
+                }
+                for (int s = 0; s < mScanCount; s++) {
+                    int component = mScanComponents[s];
+                    int h = mScanCount == 1 ? 1 : mH[component];
+                    int v = mScanCount == 1 ? 1 : mV[component];
+                    HuffmanTable dc = mScanDc[s];
+                    HuffmanTable ac = mScanAc[s];
+                    for (int by = 0; by < v; by++) {
+                        for (int bx = 0; bx < h; bx++) {
+                            int size = decodeHuffman(dc);
+                            int diff = size == 0 ? 0 : extend(readBits(size), size);
+                            mPredictors[s] += diff;
+                            skipAc(ac);
+                            if (component == 0) {
+                                int x = mx * h + bx;
+                                int y = my * v + by;
+                                if (x < blocksX && y < blocksY) {
+                                    map.set(y * blocksX + x,
+                                            toLuminance(mPredictors[s], quant));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Mean sample value of a block from its quantized DC coefficient.
+    private static int toLuminance(int dc, int quant) {
+        int value = ((dc * quant) >> 3) + 128;
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private void skipAc(HuffmanTable ac) throws IOException {
+        int k = 1;
+        while (k < 64) {
+            int rs = decodeHuffman(ac);
+            int run = rs >> 4;
+            int size = rs & 0x0F;
+            if (size == 0) {
+                if (run != 15) {
+                    return; // EOB
+                }
+                k += 16;
+            } else {
+                k += run;
+                skipBits(size);
+                k++;
+            }
+        }
+    }
+
+    private void restart() throws IOException {
+        mBitBuffer = 0;
+        mBitCount = 0;
+        if (!mMarkerHit) {
+            // skip to the RST marker
+            while (mPos + 1 < mEnd && !((mData[mPos] & 0xFF) == 0xFF
+                    && (mData[mPos + 1] & 0xFF) != 0x00)) {
+                mPos++;
+            }
+        }
+        int marker = nextMarker();
+        if (marker < 0xD0 || marker > 0xD7) {
+            throw new IOException("Restart marker expected.");
+        }
+        mMarkerHit = false;
+        for (int i = 0; i < mScanCount; i++) {
+            mPredictors[i] = 0;
+        }
+    }
+
+    private void fillBits() {
+        while (mBitCount <= 24) {
+            int b = 0;
+            if (!mMarkerHit && mPos < mEnd) {
+                b = mData[mPos] & 0xFF;
+                if (b == 0xFF) {
+                    int next = mPos + 1 < mEnd ? mData[mPos + 1] & 0xFF : 0xD9;
+                    if (next == 0x00) {
+                        mPos += 2;
+                    } else {
+                        // a marker ends the entropy coded data, feed zeros
+                        mMarkerHit = true;
+                        b = 0;
+                    }
+                } else {
+                    mPos++;
+                }
+            }
+            mBitBuffer |= b << (24 - mBitCount);
+            mBitCount += 8;
+        }
+    }
+
+    private int decodeHuffman(HuffmanTable table) throws IOException {
+        if (mBitCount < 16) {
+            fillBits();
+        }
+        int entry = table.lookahead[mBitBuffer >>> (32 - LOOKAHEAD_BITS)];
+        if (entry != 0) {
+            int length = entry >> 8;
+            mBitBuffer <<= length;
+            mBitCount -= length;
+            return entry & 0xFF;
+        }
+        int length = LOOKAHEAD_BITS + 1;
+        int code = mBitBuffer >>> (32 - length);
+        while (code > table.maxCode[length]) {
+            length++;
+            if (length > 16) {
+                throw new IOException("Corrupt Huffman data.");
+            }
+            code = mBitBuffer >>> (32 - length);
+        }
+        mBitBuffer <<= length;
+        mBitCount -= length;
+        return table.symbols[code + table.valueOffset[length]] & 0xFF;
+    }
+
+    private int readBits(int count) {
+        if (mBitCount < count) {
+            fillBits();
+        }
+        int value = mBitBuffer >>> (32 - count);
+        mBitBuffer <<= count;
+        mBitCount -= count;
+        return value;
+    }
+
+    private void skipBits(int count) {
+        if (mBitCount < count) {
+            fillBits();
+        }
+        mBitBuffer <<= count;
+        mBitCount -= count;
+    }
+
+    private static int extend(int value, int size) {
+        return value < (1 << (size - 1)) ? value - (1 << size) + 1 : value;
+    }
+}
@@ -0,0 +1,118 @@
+package com.codeschmoof.android.timelapse.liveview;
+
+import com.codeschmoof.android.timelapse.api.utils.SimpleLiveviewSlicer.Payload;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted liveview frame. All subscribers of a
+ * {@link LiveviewMultiplexer} share the same instance and the same JPEG
+ * array; nothing is copied per subscriber.
+ * <p/>
+ * A frame handed to {@link LiveviewMultiplexer.FrameListener#onFrame} is
+ * released automatically when the callback returns. A subscriber that keeps
+ * the frame beyond that (e.g. to hand it to another thread) must call
+ * {@link #retain()} and later {@link #release()} exactly once. Once the last
+ * reference is gone the payload is dropped and accessing it throws
+ * {@link IllegalStateException}.
+ */
+public final class LiveviewFrame {
+
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+    private final long mReceivedAt;
+    private volatile Payload mPayload;
+
+    LiveviewFrame(Payload payload, long receivedAt) {
+        mPayload = payload;
+        mReceivedAt = receivedAt;
+    }
+
+    /**
+     * Returns the sliced payload.
+     *
+     * @return payload
+     */
+    public Payload getPayload() {
+        Payload payload = mPayload;
+        if (payload == null) {
+            throw new IllegalStateException("Frame already released.");
+        }
+        return payload;
+    }
+
+    /**
+     * Returns the JPEG data of the frame. The array is shared and must not be
+     * modified.
+     *
+     * @return JPEG data
+     */
+    public byte[] getJpegData() {
+        return getPayload().jpegData;
+    }
+
+    /**
+     * Returns the sequence number of the Packet.
+     *
+     * @return sequence number
+     */
+    public int getSequenceNumber() {
+        return getPayload().sequenceNumber;
+    }
+
+    /**
+     * Returns the camera time stamp of the Packet.
+     *
+     * @return time stamp in milliseconds
+     */
+    public long getTimeStamp() {
+        return getPayload().timeStamp;
+    }
+
+    /**
+     * Returns the local time the frame was read from the stream, in
+     * milliseconds of {@link System#nanoTime()}.
+     *
+     * @return arrival time in milliseconds
+     */
+    public long getReceivedAt() {
+        return mReceivedAt;
+    }
+
+    /**
+     * Adds a reference.
+     *
+     * @return this frame
+     */
+    public LiveviewFrame retain() {
+        while (true) {
+            int count = mRefCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Frame already released.");
+            }
+            if (mRefCount.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Drops a reference.
+     */
+    public void release() {
+        int count = mRefCount.decrementAndGet();
+        if (count == 0) {
+            mPayload = null;
+        } else if (count < 0) {
+            throw new IllegalStateException("Frame released too often.");
+        }
+    }
+
+    /**
+     * Returns the current number of references.
+     *
+     * @return reference count
+     */
+    public int refCount() {
+        return mRefCount.get();
+    }
+}
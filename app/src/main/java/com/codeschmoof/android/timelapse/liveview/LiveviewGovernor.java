@@ -0,0 +1,192 @@
+package com.codeschmoof.android.timelapse.liveview;
+
+/**
+ * Throttles the liveview stream so that capture-critical requests (shutter
+ * commands) do not have to compete with it on the Wi-Fi link.
+ * <p/>
+ * The liveview reader calls {@link #awaitReadPermit()} before each Packet.
+ * While a critical request is pending, reads are paused; the socket buffers
+ * fill up and TCP flow control stops the camera from sending. Between
+ * requests, the frame rate is limited with additive increase / multiplicative
+ * decrease: when the shutter round trip time rises well above the best one
+ * seen, the limit is halved, and while it stays close to it the limit grows
+ * by one frame per second per request. The preview degrades, the shots do
+ * not.
+ */
+public class LiveviewGovernor {
+
+    /** default lower bound of the frame rate limit */
+    public static final float DEFAULT_MIN_FRAME_RATE = 2f;
+
+    /** default upper bound of the frame rate limit */
+    public static final float DEFAULT_MAX_FRAME_RATE = 30f;
+
+    // A forgotten endCriticalRequest() must not stall the preview forever.
+    private static final long MAX_PAUSE = 5000; // [msec]
+    private static final long BANDWIDTH_WINDOW = 1000; // [msec]
+    private static final double RTT_SMOOTHING = 0.3;
+    private static final double CONGESTED_RATIO = 2.0;
+    private static final double RELAXED_RATIO = 1.3;
+
+    private final float mMinFrameRate;
+    private final float mMaxFrameRate;
+
+    private int mPending;
+    private float mFrameRateLimit;
+    private long mLastReadAt;
+
+    private long mWindowStart;
+    private long mWindowBytes;
+    private double mBytesPerSecond;
+
+    private double mAverageRtt = -1;
+    private long mBestRtt = Long.MAX_VALUE;
+
+    /**
+     * Constructor with default frame rate bounds.
+     */
+    public LiveviewGovernor() {
+        this(DEFAULT_MIN_FRAME_RATE, DEFAULT_MAX_FRAME_RATE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param minFrameRate lowest frame rate the preview is throttled to
+     * @param maxFrameRate highest frame rate, also the initial limit
+     */
+    public LiveviewGovernor(float minFrameRate, float maxFrameRate) {
+        if (minFrameRate <= 0 || maxFrameRate < minFrameRate) {
+            throw new IllegalArgumentException("Invalid frame rate bounds.");
+        }
+        mMinFrameRate = minFrameRate;
+        mMaxFrameRate = maxFrameRate;
+        mFrameRateLimit = maxFrameRate;
+    }
+
+    /**
+     * Announces a capture-critical request. Liveview reads pause until the
+     * matching {@link #endCriticalRequest(long)}.
+     */
+    public synchronized void beginCriticalRequest() {
+        mPending++;
+    }
+
+    /**
+     * Reports the completion of a capture-critical request.
+     *
+     * @param rttMillis round trip time of the request in milliseconds
+     */
+    public synchronized void endCriticalRequest(long rttMillis) {
+        if (mPending > 0) {
+            mPending--;
+        }
+        if (rttMillis >= 0) {
+            mBestRtt = Math.min(mBestRtt, Math.max(1, rttMillis));
+            mAverageRtt = mAverageRtt < 0 ? rttMillis : mAverageRtt
+                    + RTT_SMOOTHING * (rttMillis - mAverageRtt);
+
+            double ratio = mAverageRtt / mBestRtt;
+            if (ratio > CONGESTED_RATIO) {
+                mFrameRateLimit = Math.max(mMinFrameRate, mFrameRateLimit / 2);
+            } else if (ratio < RELAXED_RATIO) {
+                mFrameRateLimit = Math.min(mMaxFrameRate, mFrameRateLimit + 1);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Blocks the liveview reader while critical requests are pending and
+     * until the next frame is allowed by the frame rate limit.
+     */
+    public void awaitReadPermit() {
+        long delay;
+        synchronized (this) {
+            long deadline = now() + MAX_PAUSE;
+            try {
+                while (mPending > 0) {
+                    long timeout = deadline - now();
+                    if (timeout <= 0) {
+                        break;
+                    }
+                    wait(timeout);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            long interval = (long) (1000 / mFrameRateLimit);
+            delay = mLastReadAt + interval - now();
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            mLastReadAt = now();
+        }
+    }
+
+    /**
+     * Records a Packet read from the stream.
+     *
+     * @param bytes size of the Packet
+     */
+    public synchronized void onFrameRead(int bytes) {
+        long now = now();
+        if (mWindowStart == 0) {
+            mWindowStart = now;
+        }
+        mWindowBytes += bytes;
+        long elapsed = now - mWindowStart;
+        if (elapsed >= BANDWIDTH_WINDOW) {
+            mBytesPerSecond = mWindowBytes * 1000.0 / elapsed;
+            mWindowBytes = 0;
+            mWindowStart = now;
+        }
+    }
+
+    /**
+     * Returns the liveview bandwidth of the last full measurement window.
+     *
+     * @return bytes per second
+     */
+    public synchronized double getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * Returns the current frame rate limit.
+     *
+     * @return frames per second
+     */
+    public synchronized float getFrameRateLimit() {
+        return mFrameRateLimit;
+    }
+
+    /**
+     * Returns the smoothed round trip time of critical requests.
+     *
+     * @return milliseconds, or -1 if none completed yet
+     */
+    public synchronized double getAverageRtt() {
+        return mAverageRtt;
+    }
+
+    /**
+     * Returns the number of pending critical requests.
+     *
+     * @return pending requests
+     */
+    public synchronized int getPendingRequests() {
+        return mPending;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+}
@@ -0,0 +1,219 @@
+package com.codeschmoof.android.timelapse.liveview;
+
+import com.codeschmoof.android.timelapse.api.utils.SimpleLiveviewSlicer.Payload;
+
+/**
+ * Collects link statistics from the sequence numbers and time stamps carried
+ * in the common header of each liveview Packet.
+ * <p/>
+ * The camera clock and the local clock have an unknown offset, so absolute
+ * latency cannot be measured. Instead the smallest observed offset
+ * (arrival time - camera time stamp) is taken as the baseline, i.e. the
+ * fastest transfer seen so far, and the latency drift is the distance of the
+ * current offset from that baseline. A growing drift means frames are queueing
+ * up somewhere between the camera and the app.
+ */
+public class LiveviewMetrics {
+
+    private static final int SEQUENCE_MODULO = 0x10000;
+    private static final long TIME_STAMP_MODULO = 0x100000000L;
+    private static final int DEFAULT_WINDOW_SIZE = 30;
+
+    /**
+     * Immutable view of the collected values.
+     */
+    public static class Snapshot {
+        /** number of frames received */
+        final public long frameCount;
+
+        /** number of sequence numbers skipped by the camera or the link */
+        final public long droppedFrames;
+
+        /** number of discontinuities in the sequence */
+        final public long gapCount;
+
+        /** number of duplicated or out-of-order sequence numbers */
+        final public long reorderedFrames;
+
+        /** frames per second measured over the recent window */
+        final public double frameRate;
+
+        /** current offset above the baseline in milliseconds */
+        final public long latencyDrift;
+
+        /** average offset above the baseline over the recent window */
+        final public double averageLatencyDrift;
+
+        /** largest offset above the baseline seen so far */
+        final public long maxLatencyDrift;
+
+        private Snapshot(long frameCount, long droppedFrames, long gapCount,
+                long reorderedFrames, double frameRate, long latencyDrift,
+                double averageLatencyDrift, long maxLatencyDrift) {
+            this.frameCount = frameCount;
+            this.droppedFrames = droppedFrames;
+            this.gapCount = gapCount;
+            this.reorderedFrames = reorderedFrames;
+            this.frameRate = frameRate;
+            this.latencyDrift = latencyDrift;
+            this.averageLatencyDrift = averageLatencyDrift;
+            this.maxLatencyDrift = maxLatencyDrift;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "frames=%d dropped=%d gaps=%d reordered=%d fps=%.1f drift=%dms avgDrift=%.1fms maxDrift=%dms",
+                    frameCount, droppedFrames, gapCount, reorderedFrames,
+                    frameRate, latencyDrift, averageLatencyDrift,
+                    maxLatencyDrift);
+        }
+    }
+
+    private final long[] mArrivals;
+    private final long[] mOffsets;
+    private int mWindowIndex;
+    private int mWindowFill;
+
+    private long mFrameCount;
+    private long mDroppedFrames;
+    private long mGapCount;
+    private long mReorderedFrames;
+
+    private int mLastSequenceNumber;
+    private long mLastTimeStamp;
+    private long mCameraTime;
+    private long mBaselineOffset;
+    private long mLastOffset;
+    private long mMaxLatencyDrift;
+
+    /**
+     * Constructor. Uses a window of 30 frames for rate and drift averages.
+     */
+    public LiveviewMetrics() {
+        this(DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param windowSize number of recent frames used for averages
+     */
+    public LiveviewMetrics(int windowSize) {
+        if (windowSize < 2) {
+            throw new IllegalArgumentException("windowSize < 2");
+        }
+        mArrivals = new long[windowSize];
+        mOffsets = new long[windowSize];
+    }
+
+    /**
+     * Records a payload that arrived now.
+     *
+     * @param payload sliced payload
+     */
+    public void onPayload(Payload payload) {
+        onPayload(payload.sequenceNumber, payload.timeStamp,
+                System.nanoTime() / 1000000L);
+    }
+
+    /**
+     * Records a payload.
+     *
+     * @param payload sliced payload
+     * @param arrivalMillis local arrival time in milliseconds of a monotonic
+     *            clock
+     */
+    public void onPayload(Payload payload, long arrivalMillis) {
+        onPayload(payload.sequenceNumber, payload.timeStamp, arrivalMillis);
+    }
+
+    /**
+     * Records the header values of one Packet.
+     *
+     * @param sequenceNumber sequence number of the Packet
+     * @param timeStamp camera time stamp of the Packet (unsigned 32 bit)
+     * @param arrivalMillis local arrival time in milliseconds of a monotonic
+     *            clock
+     */
+    public synchronized void onPayload(int sequenceNumber, long timeStamp,
+            long arrivalMillis) {
+        if (mFrameCount == 0) {
+            mCameraTime = timeStamp;
+            mBaselineOffset = arrivalMillis - mCameraTime;
+        } else {
+            int step = (sequenceNumber - mLastSequenceNumber) & (SEQUENCE_MODULO - 1);
+            if (step == 0 || step >= SEQUENCE_MODULO / 2) {
+                mReorderedFrames++;
+            } else if (step > 1) {
+                mGapCount++;
+                mDroppedFrames += step - 1;
+            }
+
+            // unwrap the 32 bit camera clock
+            long delta = (timeStamp - mLastTimeStamp) & (TIME_STAMP_MODULO - 1);
+            if (delta >= TIME_STAMP_MODULO / 2) {
+                delta -= TIME_STAMP_MODULO;
+            }
+            mCameraTime += delta;
+        }
+        mLastSequenceNumber = sequenceNumber;
+        mLastTimeStamp = timeStamp;
+        mFrameCount++;
+
+        mLastOffset = arrivalMillis - mCameraTime;
+        if (mLastOffset < mBaselineOffset) {
+            mBaselineOffset = mLastOffset;
+        }
+        mMaxLatencyDrift = Math.max(mMaxLatencyDrift, mLastOffset
+                - mBaselineOffset);
+
+        mArrivals[mWindowIndex] = arrivalMillis;
+        mOffsets[mWindowIndex] = mLastOffset;
+        mWindowIndex = (mWindowIndex + 1) % mArrivals.length;
+        if (mWindowFill < mArrivals.length) {
+            mWindowFill++;
+        }
+    }
+
+    /**
+     * Returns the current values.
+     *
+     * @return snapshot of the metrics
+     */
+    public synchronized Snapshot snapshot() {
+        double frameRate = 0;
+        double averageDrift = 0;
+        if (mWindowFill > 0) {
+            int newest = (mWindowIndex - 1 + mArrivals.length) % mArrivals.length;
+            int oldest = (mWindowIndex - mWindowFill + mArrivals.length)
+                    % mArrivals.length;
+            long span = mArrivals[newest] - mArrivals[oldest];
+            if (span > 0) {
+                frameRate = (mWindowFill - 1) * 1000.0 / span;
+            }
+            long sum = 0;
+            for (int i = 0; i < mWindowFill; i++) {
+                sum += mOffsets[(oldest + i) % mOffsets.length] - mBaselineOffset;
+            }
+            averageDrift = sum / (double) mWindowFill;
+        }
+        long drift = mFrameCount == 0 ? 0 : mLastOffset - mBaselineOffset;
+        return new Snapshot(mFrameCount, mDroppedFrames, mGapCount,
+                mReorderedFrames, frameRate, drift, averageDrift,
+                mMaxLatencyDrift);
+    }
+
+    /**
+     * Clears all collected values, e.g. after the liveview was restarted.
+     */
+    public synchronized void reset() {
+        mWindowIndex = 0;
+        mWindowFill = 0;
+        mFrameCount = 0;
+        mDroppedFrames = 0;
+        mGapCount = 0;
+        mReorderedFrames = 0;
+        mMaxLatencyDrift = 0;
+    }
+}
@@ -0,0 +1,382 @@
+package com.codeschmoof.android.timelapse.liveview;
+
+import android.util.Log;
+
+import com.codeschmoof.android.timelapse.api.utils.SimpleLiveviewSlicer;
+import com.codeschmoof.android.timelapse.api.utils.SimpleLiveviewSlicer.Payload;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Shares one liveview connection between several consumers.
+ * <p/>
+ * A single reader thread slices the stream and publishes each frame to all
+ * subscriptions. Every subscription has its own bounded queue, drop policy
+ * and delivery thread, so a slow consumer only loses its own frames and never
+ * blocks the reader or the other subscribers.
+ */
+public class LiveviewMultiplexer {
+
+    private static final String TAG = LiveviewMultiplexer.class.getSimpleName();
+
+    /**
+     * What to do when a subscriber's queue is full.
+     */
+    public enum DropPolicy {
+        /** Discard the oldest queued frame to make room for the new one. */
+        DROP_OLDEST,
+        /** Discard the new frame and keep the queued ones. */
+        DROP_NEWEST,
+        /** Keep only the most recent frame, regardless of the queue size. */
+        LATEST_ONLY
+    }
+
+    /**
+     * Receives frames of a subscription. Called on the subscription's own
+     * thread.
+     */
+    public interface FrameListener {
+
+        /**
+         * Called for each delivered frame. The frame is released when this
+         * method returns unless the listener retains it.
+         *
+         * @param frame liveview frame
+         */
+        public void onFrame(LiveviewFrame frame);
+
+        /**
+         * Called once when the stream ends, either by {@link #stop()} or by
+         * an error.
+         *
+         * @param cause the error or null if stopped normally
+         */
+        public void onStreamClosed(IOException cause);
+    }
+
+    /**
+     * Handle of a subscriber.
+     */
+    public final class Subscription {
+        private final FrameListener mListener;
+        private final DropPolicy mPolicy;
+        private final int mCapacity;
+        private final ArrayDeque<LiveviewFrame> mQueue;
+        private final Thread mThread;
+        private boolean mClosed;
+        private IOException mCloseCause;
+        private volatile long mDelivered;
+        private volatile long mDropped;
+
+        private Subscription(FrameListener listener, DropPolicy policy,
+                int capacity) {
+            mListener = listener;
+            mPolicy = policy;
+            mCapacity = policy == DropPolicy.LATEST_ONLY ? 1 : capacity;
+            mQueue = new ArrayDeque<LiveviewFrame>(mCapacity);
+            mThread = new Thread(TAG + "-subscriber") {
+                @Override
+                public void run() {
+                    deliverLoop();
+                }
+            };
+        }
+
+        /**
+         * Returns the number of frames handed to the listener.
+         *
+         * @return delivered frames
+         */
+        public long getDeliveredFrames() {
+            return mDelivered;
+        }
+
+        /**
+         * Returns the number of frames dropped for this subscriber.
+         *
+         * @return dropped frames
+         */
+        public long getDroppedFrames() {
+            return mDropped;
+        }
+
+        /**
+         * Stops delivery to this subscriber. Queued frames are released.
+         */
+        public void cancel() {
+            mSubscriptions.remove(this);
+            close(null);
+        }
+
+        // Called by the reader thread. Never blocks.
+        private void offer(LiveviewFrame frame) {
+            LiveviewFrame dropped = null;
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                if (mQueue.size() >= mCapacity) {
+                    if (mPolicy == DropPolicy.DROP_NEWEST) {
+                        mDropped++;
+                        return;
+                    }
+                    dropped = mQueue.pollFirst();
+                    mDropped++;
+                }
+                mQueue.addLast(frame.retain());
+                notifyAll();
+            }
+            if (dropped != null) {
+                dropped.release();
+            }
+        }
+
+        private void close(IOException cause) {
+            synchronized (this) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+                mCloseCause = cause;
+                for (LiveviewFrame frame : mQueue) {
+                    frame.release();
+                }
+                mQueue.clear();
+                notifyAll();
+            }
+        }
+
+        private void deliverLoop() {
+            while (true) {
+                LiveviewFrame frame;
+                synchronized (this) {
+                    while (!mClosed && mQueue.isEmpty()) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            // like cancel(), so that queued frames are released
+                            mSubscriptions.remove(this);
+                            close(null);
+                        }
+                    }
+                    if (mClosed) {
+                        break;
+                    }
+                    frame = mQueue.pollFirst();
+                }
+                try {
+                    mListener.onFrame(frame);
+                    mDelivered++;
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "onFrame() failed.", e);
+                } finally {
+                    frame.release();
+                }
+            }
+            mListener.onStreamClosed(mCloseCause);
+        }
+    }
+
+    private final SimpleLiveviewSlicer mSlicer;
+    private final LiveviewMetrics mMetrics = new LiveviewMetrics();
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<Subscription>();
+    private Thread mReaderThread;
+    private volatile boolean mRunning;
+    private volatile LiveviewGovernor mGovernor;
+
+    /**
+     * Constructor. Creates its own slicer with resync mode enabled.
+     */
+    public LiveviewMultiplexer() {
+        this(new SimpleLiveviewSlicer());
+        mSlicer.setResyncEnabled(true);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param slicer slicer that is not open yet
+     */
+    public LiveviewMultiplexer(SimpleLiveviewSlicer slicer) {
+        if (slicer == null) {
+            throw new NullPointerException("slicer is null.");
+        }
+        mSlicer = slicer;
+    }
+
+    /**
+     * Adds a subscriber. Subscribers can be added before or while the stream
+     * is running.
+     *
+     * @param listener frame listener
+     * @param policy what to do when the queue is full
+     * @param queueSize maximum number of queued frames, ignored for
+     *            {@link DropPolicy#LATEST_ONLY}
+     * @return subscription handle
+     */
+    public Subscription subscribe(FrameListener listener, DropPolicy policy,
+            int queueSize) {
+        if (listener == null || policy == null) {
+            throw new NullPointerException("listener or policy is null.");
+        }
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("queueSize < 1");
+        }
+        Subscription subscription = new Subscription(listener, policy,
+                queueSize);
+        mSubscriptions.add(subscription);
+        subscription.mThread.start();
+        return subscription;
+    }
+
+    /**
+     * Sets a governor that throttles reading from the upstream connection.
+     *
+     * @param governor governor or null to read at full speed
+     */
+    public void setGovernor(LiveviewGovernor governor) {
+        mGovernor = governor;
+    }
+
+    /**
+     * Opens the upstream connection and starts publishing frames.
+     *
+     * @param liveviewUrl liveview URL returned by startLiveview API
+     * @throws IOException if the connection cannot be opened
+     */
+    public synchronized void start(String liveviewUrl) throws IOException {
+        if (mRunning) {
+            throw new IllegalStateException("Multiplexer is already running.");
+        }
+        try {
+            awaitReaderExit();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while the previous stream stops.");
+        }
+        mSlicer.open(liveviewUrl);
+        mMetrics.reset();
+        mRunning = true;
+        mReaderThread = new Thread(TAG + "-reader") {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        };
+        mReaderThread.start();
+    }
+
+    /**
+     * Closes the upstream connection. All subscriptions are closed and
+     * their listeners receive {@link FrameListener#onStreamClosed}. Returns
+     * after the reader thread has exited.
+     */
+    public synchronized void stop() {
+        if (mRunning) {
+            mRunning = false;
+            try {
+                // unblocks the reader thread
+                mSlicer.close();
+            } catch (IOException e) {
+                Log.w(TAG, "stop() close failed.", e);
+            }
+        }
+        try {
+            awaitReaderExit();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Checks to see whether the stream is running.
+     *
+     * @return true if running
+     */
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Returns link metrics of the upstream connection.
+     *
+     * @return metrics
+     */
+    public LiveviewMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Returns the upstream slicer, e.g. to read its resync counters.
+     *
+     * @return slicer
+     */
+    public SimpleLiveviewSlicer getSlicer() {
+        return mSlicer;
+    }
+
+    // Waits until the reader thread has closed its subscriptions, so that it
+    // cannot read from a reopened slicer or close subscriptions of the next
+    // stream. Called with the lock held.
+    private void awaitReaderExit() throws InterruptedException {
+        while (mReaderThread != null
+                && mReaderThread != Thread.currentThread()) {
+            wait();
+        }
+    }
+
+    private void readLoop() {
+        IOException cause = null;
+        try {
+            while (mRunning) {
+                LiveviewGovernor governor = mGovernor;
+                if (governor != null) {
+                    governor.awaitReadPermit();
+                }
+                Payload payload = mSlicer.nextPayload();
+                if (payload == null) {
+                    break;
+                }
+                long receivedAt = System.nanoTime() / 1000000L;
+                mMetrics.onPayload(payload, receivedAt);
+                if (governor != null) {
+                    governor.onFrameRead(payload.jpegData.length
+                            + payload.paddingData.length);
+                }
+
+                LiveviewFrame frame = new LiveviewFrame(payload, receivedAt);
+                for (Subscription subscription : mSubscriptions) {
+                    subscription.offer(frame);
+                }
+                frame.release();
+            }
+        } catch (IOException e) {
+            if (mRunning) {
+                Log.w(TAG, "readLoop() stream error.", e);
+                cause = e;
+            }
+        }
+
+        synchronized (this) {
+            if (mRunning) {
+                mRunning = false;
+                try {
+                    mSlicer.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "readLoop() close failed.", e);
+                }
+            }
+        }
+        for (Subscription subscription : mSubscriptions) {
+            mSubscriptions.remove(subscription);
+            subscription.close(cause);
+        }
+        synchronized (this) {
+            mReaderThread = null;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.codeschmoof.android.timelapse.liveview;
+
+import android.util.Log;
+
+import com.codeschmoof.android.timelapse.api.utils.SimpleLiveviewSlicer.Payload;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records raw liveview JPEG payloads into an append-only, memory-mapped
+ * recording directory that can be read back with {@link LiveviewRecording}.
+ * <p/>
+ * The JPEG data goes into fixed size segment files ({@code segment-NNNNN.dat}),
+ * a frame never spans two segments. {@code index.dat} holds a 16 byte header
+ * followed by one 16 byte entry per frame:
+ *
+ * <pre>
+ * header: int magic, int version, int segmentSize, int frameCount
+ * entry:  short segment, short sequenceNumber, int offset, int length, int timeStamp
+ * </pre>
+ *
+ * All values are big endian. The frame count in the header is updated after
+ * each entry, so a recording that was not closed properly is still readable
+ * up to the last complete frame.
+ * <p/>
+ * Instances are not thread safe; use one writer thread, e.g. by subscribing
+ * the recorder to a {@link LiveviewMultiplexer}.
+ */
+public class LiveviewRecorder implements LiveviewMultiplexer.FrameListener {
+
+    private static final String TAG = LiveviewRecorder.class.getSimpleName();
+
+    static final int MAGIC = 0x4C565258; // "LVRX"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int ENTRY_SIZE = 16;
+    static final String INDEX_FILE = "index.dat";
+    static final int MAX_SEGMENTS = 0x10000;
+
+    /** default segment size (64 MiB) */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int INDEX_GROWTH = 65536 * ENTRY_SIZE;
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+
+    private RandomAccessFile mIndexFile;
+    private MappedByteBuffer mIndex;
+    private int mFrameCount;
+
+    private RandomAccessFile mSegmentFile;
+    private MappedByteBuffer mSegment;
+    private int mSegmentNumber = -1;
+
+    /**
+     * Constructor. Creates a new recording with the default segment size.
+     *
+     * @param directory empty or non-existing directory
+     * @throws IOException if the recording cannot be created
+     */
+    public LiveviewRecorder(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Constructor. Creates a new recording.
+     *
+     * @param directory empty or non-existing directory
+     * @param segmentSize size of each segment file in bytes, also the maximum
+     *            frame size
+     * @throws IOException if the recording cannot be created
+     */
+    public LiveviewRecorder(File directory, int segmentSize) throws IOException {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("segmentSize <= 0");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File indexFile = new File(directory, INDEX_FILE);
+        if (indexFile.exists()) {
+            throw new IOException("Recording already exists: " + directory);
+        }
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+
+        mIndexFile = new RandomAccessFile(indexFile, "rw");
+        mapIndex(HEADER_SIZE + INDEX_GROWTH);
+        mIndex.putInt(0, MAGIC);
+        mIndex.putInt(4, VERSION);
+        mIndex.putInt(8, segmentSize);
+        mIndex.putInt(12, 0);
+    }
+
+    /**
+     * Returns the number of recorded frames.
+     *
+     * @return frame count
+     */
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Appends a payload.
+     *
+     * @param payload sliced payload
+     * @throws IOException if the data cannot be written
+     */
+    public void append(Payload payload) throws IOException {
+        append(payload.jpegData, 0, payload.jpegData.length,
+                payload.sequenceNumber, payload.timeStamp);
+    }
+
+    /**
+     * Appends a JPEG frame.
+     *
+     * @param data buffer holding the JPEG data
+     * @param offset start of the JPEG data in the buffer
+     * @param length length of the JPEG data
+     * @param sequenceNumber sequence number of the Packet
+     * @param timeStamp camera time stamp of the Packet
+     * @throws IOException if the data cannot be written
+     */
+    public void append(byte[] data, int offset, int length,
+            int sequenceNumber, long timeStamp) throws IOException {
+        if (mIndex == null) {
+            throw new IllegalStateException("Recorder is closed.");
+        }
+        if (length > mSegmentSize) {
+            throw new IOException("Frame larger than segment: " + length);
+        }
+        if (mSegment == null || mSegment.remaining() < length) {
+            nextSegment();
+        }
+        int position = mSegment.position();
+        mSegment.put(data, offset, length);
+
+        int entry = HEADER_SIZE + mFrameCount * ENTRY_SIZE;
+        if (entry + ENTRY_SIZE > mIndex.capacity()) {
+            mapIndex(mIndex.capacity() + INDEX_GROWTH);
+        }
+        mIndex.putShort(entry, (short) mSegmentNumber);
+        mIndex.putShort(entry + 2, (short) sequenceNumber);
+        mIndex.putInt(entry + 4, position);
+        mIndex.putInt(entry + 8, length);
+        mIndex.putInt(entry + 12, (int) timeStamp);
+        mFrameCount++;
+        mIndex.putInt(12, mFrameCount);
+    }
+
+    /**
+     * Flushes the mapped data to the storage.
+     */
+    public void flush() {
+        if (mSegment != null) {
+            mSegment.force();
+        }
+        if (mIndex != null) {
+            mIndex.force();
+        }
+    }
+
+    /**
+     * Flushes and closes the recording. Unused space at the end of the last
+     * segment and the index is trimmed.
+     *
+     * @throws IOException if the files cannot be closed
+     */
+    public void close() throws IOException {
+        if (mIndex == null) {
+            return;
+        }
+        flush();
+        closeSegment();
+        mIndex = null;
+        mIndexFile.setLength(HEADER_SIZE + (long) mFrameCount * ENTRY_SIZE);
+        mIndexFile.close();
+        mIndexFile = null;
+    }
+
+    @Override
+    public void onFrame(LiveviewFrame frame) {
+        if (mIndex == null) {
+            return;
+        }
+        try {
+            append(frame.getPayload());
+        } catch (IOException e) {
+            Log.e(TAG, "onFrame() write failed: " + mDirectory, e);
+        }
+    }
+
+    @Override
+    public void onStreamClosed(IOException cause) {
+        try {
+            close();
+        } catch (IOException e) {
+            Log.e(TAG, "onStreamClosed() close failed: " + mDirectory, e);
+        }
+    }
+
+    private void mapIndex(int size) throws IOException {
+        mIndex = mIndexFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                0, size);
+    }
+
+    private void nextSegment() throws IOException {
+        if (mSegmentNumber + 1 >= MAX_SEGMENTS) {
+            throw new IOException("Too many segments.");
+        }
+        closeSegment();
+        mSegmentNumber++;
+        mSegmentFile = new RandomAccessFile(segmentFile(mDirectory,
+                mSegmentNumber), "rw");
+        mSegment = mSegmentFile.getChannel().map(
+                FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+    }
+
+    private void closeSegment() throws IOException {
+        if (mSegmentFile != null) {
+            mSegment.force();
+            int used = mSegment.position();
+            mSegment = null;
+            mSegmentFile.setLength(used);
+            mSegmentFile.close();
+            mSegmentFile = null;
+        }
+    }
+
+    static File segmentFile(File directory, int segment) {
+        return new File(directory, String.format("segment-%05d.dat",
+                segment));
+    }
+}
@@ -0,0 +1,206 @@
+package com.codeschmoof.android.timelapse.liveview;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access reader of a recording written by {@link LiveviewRecorder}.
+ * <p/>
+ * The index and the segments are memory-mapped read-only; segments are
+ * mapped on first access. Looking up a frame by number is a single index
+ * read and looking up a frame by time stamp is a binary search, so even
+ * recordings with millions of frames can be scrubbed instantly. Frame data
+ * is returned as read-only views of the mapped segments without copying.
+ * <p/>
+ * The frame count is taken when the recording is opened; call
+ * {@link #refresh()} to pick up frames appended by a running recorder.
+ */
+public class LiveviewRecording {
+
+    private final File mDirectory;
+    private final RandomAccessFile mIndexFile;
+    private MappedByteBuffer mIndex;
+    private int mFrameCount;
+    private MappedByteBuffer[] mSegments = new MappedByteBuffer[0];
+
+    /**
+     * Opens a recording.
+     *
+     * @param directory recording directory
+     * @throws IOException if the recording cannot be read
+     */
+    public LiveviewRecording(File directory) throws IOException {
+        mDirectory = directory;
+        mIndexFile = new RandomAccessFile(new File(directory,
+                LiveviewRecorder.INDEX_FILE), "r");
+        try {
+            refresh();
+            if (mIndex.getInt(0) != LiveviewRecorder.MAGIC) {
+                throw new IOException("Not a liveview recording: " + directory);
+            }
+            if (mIndex.getInt(4) != LiveviewRecorder.VERSION) {
+                throw new IOException("Unsupported recording version: "
+                        + mIndex.getInt(4));
+            }
+        } catch (IOException e) {
+            mIndexFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Re-reads the frame count of the index.
+     *
+     * @throws IOException if the index cannot be read
+     */
+    public synchronized void refresh() throws IOException {
+        long size = mIndexFile.length();
+        if (size < LiveviewRecorder.HEADER_SIZE) {
+            throw new IOException("Truncated index: " + mDirectory);
+        }
+        mIndex = mIndexFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                size);
+        long available = (size - LiveviewRecorder.HEADER_SIZE)
+                / LiveviewRecorder.ENTRY_SIZE;
+        mFrameCount = (int) Math.min(available, mIndex.getInt(12));
+    }
+
+    /**
+     * Returns the number of frames.
+     *
+     * @return frame count
+     */
+    public synchronized int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Returns the camera time stamp of a frame.
+     *
+     * @param frame frame number
+     * @return time stamp in milliseconds (unsigned 32 bit)
+     */
+    public synchronized long getTimeStamp(int frame) {
+        return mIndex.getInt(entry(frame) + 12) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Returns the sequence number of a frame.
+     *
+     * @param frame frame number
+     * @return sequence number
+     */
+    public synchronized int getSequenceNumber(int frame) {
+        return mIndex.getShort(entry(frame) + 2) & 0xFFFF;
+    }
+
+    /**
+     * Returns the JPEG data length of a frame.
+     *
+     * @param frame frame number
+     * @return length in bytes
+     */
+    public synchronized int getLength(int frame) {
+        return mIndex.getInt(entry(frame) + 8);
+    }
+
+    /**
+     * Returns the JPEG data of a frame as a read-only view of the mapped
+     * segment.
+     *
+     * @param frame frame number
+     * @return JPEG data, position 0 and limit the data length
+     * @throws IOException if the segment cannot be mapped
+     */
+    public synchronized ByteBuffer getFrame(int frame) throws IOException {
+        int entry = entry(frame);
+        int segment = mIndex.getShort(entry) & 0xFFFF;
+        int offset = mIndex.getInt(entry + 4);
+        int length = mIndex.getInt(entry + 8);
+
+        ByteBuffer view = segment(segment).duplicate();
+        view.limit(offset + length);
+        view.position(offset);
+        return view.slice();
+    }
+
+    /**
+     * Copies the JPEG data of a frame into a new array, e.g. for
+     * {@code BitmapFactory.decodeByteArray}.
+     *
+     * @param frame frame number
+     * @return JPEG data
+     * @throws IOException if the segment cannot be mapped
+     */
+    public byte[] readFrame(int frame) throws IOException {
+        ByteBuffer view = getFrame(frame);
+        byte[] data = new byte[view.remaining()];
+        view.get(data);
+        return data;
+    }
+
+    /**
+     * Finds the last frame taken at or before the time stamp. Time stamps are
+     * expected to increase within a recording.
+     *
+     * @param timeStamp camera time stamp in milliseconds
+     * @return frame number, or -1 if all frames are later
+     */
+    public synchronized int findFrame(long timeStamp) {
+        int low = 0;
+        int high = mFrameCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = getTimeStamp(mid);
+            if (value <= timeStamp) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Closes the recording. Views returned by {@link #getFrame(int)} stay
+     * valid until they are garbage collected.
+     *
+     * @throws IOException if the index cannot be closed
+     */
+    public synchronized void close() throws IOException {
+        mIndexFile.close();
+        mSegments = new MappedByteBuffer[0];
+    }
+
+    private int entry(int frame) {
+        if (frame < 0 || frame >= mFrameCount) {
+            throw new IndexOutOfBoundsException("frame " + frame + " of "
+                    + mFrameCount);
+        }
+        return LiveviewRecorder.HEADER_SIZE + frame
+                * LiveviewRecorder.ENTRY_SIZE;
+    }
+
+    private MappedByteBuffer segment(int segment) throws IOException {
+        if (segment >= mSegments.length) {
+            MappedByteBuffer[] segments = new MappedByteBuffer[segment + 1];
+            System.arraycopy(mSegments, 0, segments, 0, mSegments.length);
+            mSegments = segments;
+        }
+        if (mSegments[segment] == null) {
+            RandomAccessFile file = new RandomAccessFile(
+                    LiveviewRecorder.segmentFile(mDirectory, segment), "r");
+            try {
+                mSegments[segment] = file.getChannel().map(
+                        FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } finally {
+                file.close();
+            }
+        }
+        return mSegments[segment];
+    }
+}
@@ -0,0 +1,96 @@
+package com.codeschmoof.android.timelapse.liveview;
+
+/**
+ * Per-block luminance of a liveview frame at 1/8 scale, as produced by
+ * {@link JpegDcDecoder}. Each value is the mean luminance (0 - 255) of one
+ * 8x8 pixel block.
+ * <p/>
+ * Instances are meant to be reused from frame to frame; the arrays only grow
+ * when a larger frame arrives.
+ */
+public class LuminanceMap {
+
+    private int mWidth;
+    private int mHeight;
+    private int[] mValues = new int[0];
+    private final int[] mHistogram = new int[256];
+    private long mSum;
+
+    /**
+     * Returns the number of blocks per row.
+     *
+     * @return width in blocks
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns the number of block rows.
+     *
+     * @return height in blocks
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the luminance of a block.
+     *
+     * @param x block column
+     * @param y block row
+     * @return mean luminance of the block (0 - 255)
+     */
+    public int get(int x, int y) {
+        return mValues[y * mWidth + x];
+    }
+
+    /**
+     * Returns the backing array in row-major order. Only the first
+     * {@code getWidth() * getHeight()} entries are valid.
+     *
+     * @return block values
+     */
+    public int[] getValues() {
+        return mValues;
+    }
+
+    /**
+     * Returns the histogram of the block values. The array is owned by this
+     * map and is overwritten by the next frame.
+     *
+     * @return 256 bins
+     */
+    public int[] getHistogram() {
+        return mHistogram;
+    }
+
+    /**
+     * Returns the mean luminance of the frame.
+     *
+     * @return mean luminance (0 - 255)
+     */
+    public double getMean() {
+        int count = mWidth * mHeight;
+        return count == 0 ? 0 : mSum / (double) count;
+    }
+
+    void reset(int width, int height) {
+        int count = width * height;
+        if (mValues.length < count) {
+            mValues = new int[count];
+        }
+        mWidth = width;
+        mHeight = height;
+        mSum = 0;
+        for (int i = 0; i < mHistogram.length; i++) {
+            mHistogram[i] = 0;
+        }
+    }
+
+    void set(int index, int value) {
+        mValues[index] = value;
+        mHistogram[value]++;
+        mSum += value;
+    }
+}
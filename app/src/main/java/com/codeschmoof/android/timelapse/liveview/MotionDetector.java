@@ -0,0 +1,123 @@
+package com.codeschmoof.android.timelapse.liveview;
+
+/**
+ * Detects scene changes by comparing block luminance maps against a rolling
+ * background model.
+ * <p/>
+ * The background is an exponential moving average of the block values.
+ * A block counts as changed when it differs from the background by more than
+ * the block threshold, after removing the global brightness shift between
+ * frame and background so that exposure steps and flicker are not taken for
+ * motion. Motion is reported when the fraction of changed blocks exceeds the
+ * area threshold.
+ */
+public class MotionDetector {
+
+    /** default learning rate of the background model */
+    public static final float DEFAULT_LEARNING_RATE = 0.05f;
+
+    /** default luminance difference of a changed block */
+    public static final int DEFAULT_BLOCK_THRESHOLD = 16;
+
+    /** default fraction of changed blocks that counts as motion */
+    public static final float DEFAULT_AREA_THRESHOLD = 0.01f;
+
+    private final float mLearningRate;
+    private final int mBlockThreshold;
+    private final float mAreaThreshold;
+
+    private float[] mBackground = new float[0];
+    private int mWidth;
+    private int mHeight;
+    private boolean mInitialized;
+    private float mChangedFraction;
+
+    /**
+     * Constructor with default thresholds.
+     */
+    public MotionDetector() {
+        this(DEFAULT_LEARNING_RATE, DEFAULT_BLOCK_THRESHOLD,
+                DEFAULT_AREA_THRESHOLD);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param learningRate weight of a new frame in the background model
+     *            (0 - 1)
+     * @param blockThreshold luminance difference of a changed block
+     * @param areaThreshold fraction of changed blocks that counts as motion
+     */
+    public MotionDetector(float learningRate, int blockThreshold,
+            float areaThreshold) {
+        if (learningRate <= 0 || learningRate > 1) {
+            throw new IllegalArgumentException("learningRate out of range.");
+        }
+        mLearningRate = learningRate;
+        mBlockThreshold = blockThreshold;
+        mAreaThreshold = areaThreshold;
+    }
+
+    /**
+     * Compares a frame with the background model and updates the model.
+     *
+     * @param map block luminance of the frame
+     * @return true if the frame shows motion
+     */
+    public boolean update(LuminanceMap map) {
+        int count = map.getWidth() * map.getHeight();
+        int[] values = map.getValues();
+        if (!mInitialized || map.getWidth() != mWidth
+                || map.getHeight() != mHeight) {
+            if (mBackground.length < count) {
+                mBackground = new float[count];
+            }
+            for (int i = 0; i < count; i++) {
+                mBackground[i] = values[i];
+            }
+            mWidth = map.getWidth();
+            mHeight = map.getHeight();
+            mInitialized = true;
+            mChangedFraction = 0;
+            return false;
+        }
+        if (count == 0) {
+            return false;
+        }
+
+        float backgroundSum = 0;
+        for (int i = 0; i < count; i++) {
+            backgroundSum += mBackground[i];
+        }
+        float shift = (float) map.getMean() - backgroundSum / count;
+
+        int changed = 0;
+        for (int i = 0; i < count; i++) {
+            float diff = values[i] - shift - mBackground[i];
+            if (diff > mBlockThreshold || diff < -mBlockThreshold) {
+                changed++;
+            }
+            mBackground[i] += mLearningRate * (values[i] - mBackground[i]);
+        }
+        mChangedFraction = changed / (float) count;
+        return mChangedFraction > mAreaThreshold;
+    }
+
+    /**
+     * Returns the fraction of changed blocks of the last frame.
+     *
+     * @return changed fraction (0 - 1)
+     */
+    public float getChangedFraction() {
+        return mChangedFraction;
+    }
+
+    /**
+     * Discards the background model. The next frame becomes the new
+     * background.
+     */
+    public void reset() {
+        mInitialized = false;
+        mChangedFraction = 0;
+    }
+}
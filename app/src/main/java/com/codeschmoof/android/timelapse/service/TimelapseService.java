@@ -15,8 +15,28 @@ import android.util.Log;
 
 import com.codeschmoof.android.timelapse.api.ServerDevice;
 import com.codeschmoof.android.timelapse.api.SimpleRemoteApi;
-
+import com.codeschmoof.android.timelapse.liveview.JpegDcDecoder;
+import com.codeschmoof.android.timelapse.liveview.LiveviewFrame;
+import com.codeschmoof.android.timelapse.liveview.LiveviewGovernor;
+import com.codeschmoof.android.timelapse.liveview.LiveviewMultiplexer;
+import com.codeschmoof.android.timelapse.liveview.LiveviewRecorder;
+import com.codeschmoof.android.timelapse.liveview.LuminanceMap;
+import com.codeschmoof.android.timelapse.liveview.MotionDetector;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -33,23 +53,45 @@ public class TimelapseService extends Service {
         INITIALIZED,
         CAPTURING
     }
+
+    public enum CaptureType {
+        /** Pictures are taken at a fixed period. */
+        INTERVAL,
+        /** Pictures are taken when the liveview shows motion. */
+        MOTION
+    }
     private static final String TAG = TimelapseService.class.getSimpleName();
 
     public static final String ACTION_START = "com.codeschmoof.android.timelapse.action.START";
     public static final String ACTION_CAPTURE = "com.codeschmoof.android.timelapse.action.CAPTURE";
 
+    private static final String DEVICE_FILE = "current-device.bin";
+    private static final String LIVEVIEW_DIR = "liveview";
+    private static final int RECORDING_QUEUE_SIZE = 16;
+
     private final LocalBinder binder = new LocalBinder();
     private final CopyOnWriteArrayList<ProgressListener> listener = new CopyOnWriteArrayList<ProgressListener>();
     private AlarmManager alarmManager = null;
     private ExecutorService executor = null;
     private PendingIntent alarmIntent = null;
     private volatile Mode mode = Mode.STARTED;
+    private volatile CaptureType captureType = CaptureType.INTERVAL;
     private ServerDevice currentDevice = null;
     private SimpleRemoteApi currentApi = null;
     private int period = 10;
     private int current = 0;
     private int maxRepeats = 60;
 
+    // Motion triggered capture
+    private LiveviewMultiplexer liveview = null;
+    private volatile LiveviewGovernor governor = null;
+    private volatile boolean recordLiveview = false;
+    private volatile boolean triggerPending = false;
+    private long lastTriggerAt = 0;
+    private int triggerCount = 0;
+    private long triggerLatencySum = 0;
+    private long triggerLatencyMax = 0;
+
     /**
      * Starts this service to perform action Foo with the given parameters. If
      * the service is already performing a task this action will be queued.
@@ -77,6 +119,33 @@ public class TimelapseService extends Service {
         return maxRepeats;
     }
 
+    public CaptureType getCaptureType() {
+        return captureType;
+    }
+
+    /**
+     * Whether the liveview of the motion capture is recorded, see
+     * {@link #startMotionCapture(int, int, boolean)}.
+     */
+    public boolean isRecordingLiveview() {
+        return recordLiveview;
+    }
+
+    /**
+     * Average time in ms from the arrival of the liveview frame that showed motion until the
+     * shutter command was sent, or -1 if nothing was triggered yet.
+     */
+    public synchronized long getAverageTriggerLatency() {
+        return triggerCount == 0 ? -1 : triggerLatencySum / triggerCount;
+    }
+
+    /**
+     * Largest trigger latency in ms of the current motion capture.
+     */
+    public synchronized long getMaxTriggerLatency() {
+        return triggerLatencyMax;
+    }
+
     public void addListener(ProgressListener listener) {
         this.listener.add(listener);
     }
@@ -92,6 +161,7 @@ public class TimelapseService extends Service {
             try {
                 currentApi.startRecMode();
                 mode = Mode.INITIALIZED;
+                saveDevice(device);
             } catch (Throwable e) {
                 Log.e(TAG, e.getMessage(), e);
             }
@@ -107,6 +177,66 @@ public class TimelapseService extends Service {
             mode = Mode.STARTED;
             currentDevice = null;
             currentApi = null;
+            getFileStreamPath(DEVICE_FILE).delete();
+        }
+    }
+
+    /**
+     * Remembers the connected device, so that it is still connected after the process was
+     * restarted.
+     */
+    private void saveDevice(ServerDevice device) {
+        final File file = getFileStreamPath(DEVICE_FILE);
+        final File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            device.writeTo(out);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, "saveDevice() rename failed");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "saveDevice() failed", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "IOException while closing DataOutputStream");
+                }
+            }
+        }
+    }
+
+    /**
+     * Reconnects to the device remembered by {@link #saveDevice(ServerDevice)} without any
+     * network access. The camera is assumed to be still in rec mode.
+     */
+    private synchronized void restoreDevice() {
+        final File file = getFileStreamPath(DEVICE_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            currentDevice = ServerDevice.readFrom(in);
+            currentApi = new SimpleRemoteApi(currentDevice);
+            mode = Mode.INITIALIZED;
+            Log.d(TAG, "Restored device " + currentDevice.getFriendlyName());
+        } catch (IOException e) {
+            Log.w(TAG, "restoreDevice() failed", e);
+            file.delete();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "IOException while closing DataInputStream");
+                }
+            }
         }
     }
 
@@ -117,6 +247,7 @@ public class TimelapseService extends Service {
         }
 
         mode = Mode.CAPTURING;
+        captureType = CaptureType.INTERVAL;
         this.period = period;
         this.maxRepeats = repeats;
         this.current = 0;
@@ -128,6 +259,42 @@ public class TimelapseService extends Service {
         alarmManager.setExact(AlarmManager.ELAPSED_REALTIME_WAKEUP, 0, alarmIntent);
     }
 
+    /**
+     * Starts a capture that takes a picture whenever the liveview shows motion.
+     *
+     * @param minPeriod minimum time between two pictures in seconds
+     * @param shots number of pictures after which the capture finishes
+     * @param record whether to record the liveview into a new directory below
+     *               {@code getExternalFilesDir("liveview")}, readable with LiveviewRecording
+     */
+    public synchronized void startMotionCapture(int minPeriod, int shots, boolean record) {
+        if (mode != Mode.INITIALIZED) {
+            return;
+        }
+
+        mode = Mode.CAPTURING;
+        captureType = CaptureType.MOTION;
+        recordLiveview = record;
+        this.period = minPeriod;
+        this.maxRepeats = shots;
+        this.current = 0;
+        triggerPending = false;
+        lastTriggerAt = 0;
+        triggerCount = 0;
+        triggerLatencySum = triggerLatencyMax = 0;
+
+        for (ProgressListener l: listener) {
+            l.captureStarted(minPeriod, shots);
+        }
+
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                startMotionLiveview();
+            }
+        });
+    }
+
     public void cancelCapture() {
         if (mode != Mode.CAPTURING) {
             return;
@@ -149,6 +316,22 @@ public class TimelapseService extends Service {
     private synchronized void stopCapture() {
         current = maxRepeats = 0;
         alarmManager.cancel(alarmIntent);
+        if (liveview != null) {
+            // Stopping waits for the reader thread, which the governor may hold for
+            // seconds, so it runs on the executor rather than under the service lock.
+            final LiveviewMultiplexer multiplexer = liveview;
+            liveview = null;
+            governor = null;
+
+            final SimpleRemoteApi api = currentApi;
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    multiplexer.stop();
+                    stopCameraLiveview(api);
+                }
+            });
+        }
         mode = Mode.INITIALIZED;
     }
     
@@ -163,6 +346,8 @@ public class TimelapseService extends Service {
         alarmIntent = PendingIntent.getService(this, 0, intent, 0);
         Log.d(TAG, "Service created");
 
+        restoreDevice();
+
         addListener(new NotificationProgressListener(this));
     }
 
@@ -240,10 +425,23 @@ public class TimelapseService extends Service {
 
         current++;
 
+        // Shots have priority over a running liveview on the Wi-Fi link
+        final LiveviewGovernor g = governor;
+        if (g != null) {
+            g.beginCriticalRequest();
+        }
+        final long start = System.nanoTime();
         try {
             currentApi.actTakePicture();
         } catch (IOException e) {
             Log.e(TAG, e.getMessage(), e);
+        } finally {
+            if (g != null) {
+                g.endCriticalRequest((System.nanoTime() - start) / 1000000L);
+                Log.d(TAG, "Liveview limited to " + g.getFrameRateLimit() + " fps at "
+                        + Math.round(g.getBytesPerSecond() / 1024) + " KiB/s, shutter RTT "
+                        + Math.round(g.getAverageRtt()) + " ms");
+            }
         }
 
         for (ProgressListener l: listener) {
@@ -251,6 +449,165 @@ public class TimelapseService extends Service {
         }
     }
 
+    private void startMotionLiveview() {
+        final LiveviewMultiplexer multiplexer = new LiveviewMultiplexer();
+        final LiveviewGovernor liveviewGovernor = new LiveviewGovernor();
+        multiplexer.setGovernor(liveviewGovernor);
+        final SimpleRemoteApi api = currentApi;
+        boolean cameraLiveview = false;
+        try {
+            final JSONObject reply = api.startLiveview();
+            cameraLiveview = true;
+            final String url = reply.getJSONArray("result").getString(0);
+            multiplexer.start(url);
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+            if (cameraLiveview) {
+                stopCameraLiveview(api);
+            }
+            cancelCapture();
+            return;
+        } catch (JSONException e) {
+            Log.e(TAG, e.getMessage(), e);
+            stopCameraLiveview(api);
+            cancelCapture();
+            return;
+        }
+        // Subscribe to the running stream only; whoever ends it closes the subscription.
+        final LiveviewMultiplexer.Subscription subscription = multiplexer.subscribe(
+                new MotionFrameListener(), LiveviewMultiplexer.DropPolicy.LATEST_ONLY, 1);
+        final LiveviewMultiplexer.Subscription recording = recordLiveview
+                ? startRecording(multiplexer) : null;
+        if (!multiplexer.isRunning()) {
+            Log.e(TAG, "Liveview stream ended right away");
+            subscription.cancel();
+            if (recording != null) {
+                recording.cancel();
+            }
+            stopCameraLiveview(api);
+            cancelCapture();
+            return;
+        }
+
+        synchronized (this) {
+            if (mode == Mode.CAPTURING && captureType == CaptureType.MOTION) {
+                liveview = multiplexer;
+                governor = liveviewGovernor;
+                return;
+            }
+        }
+        // canceled while the liveview was starting
+        multiplexer.stop();
+        stopCameraLiveview(api);
+    }
+
+    /**
+     * Subscribes a recorder of the liveview frames. The recording is closed with the stream.
+     *
+     * @return the subscription or null if the recording cannot be created
+     */
+    private LiveviewMultiplexer.Subscription startRecording(LiveviewMultiplexer multiplexer) {
+        final File base = getExternalFilesDir(LIVEVIEW_DIR);
+        if (base == null) {
+            Log.w(TAG, "No storage for the liveview recording");
+            return null;
+        }
+        final File directory = new File(base,
+                new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()));
+        try {
+            final LiveviewRecorder recorder = new LiveviewRecorder(directory);
+            Log.i(TAG, "Recording liveview to " + directory);
+            // The recorder drops old frames rather than holding up motion detection.
+            return multiplexer.subscribe(recorder, LiveviewMultiplexer.DropPolicy.DROP_OLDEST,
+                    RECORDING_QUEUE_SIZE);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot record liveview to " + directory, e);
+            return null;
+        }
+    }
+
+    private static void stopCameraLiveview(SimpleRemoteApi api) {
+        try {
+            api.stopLiveview();
+        } catch (IOException e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+    }
+
+    private void takeMotionPicture(long detectedAt) {
+        try {
+            if (mode != Mode.CAPTURING || captureType != CaptureType.MOTION) {
+                return;
+            }
+
+            final long latency = System.nanoTime() / 1000000L - detectedAt;
+            synchronized (this) {
+                triggerCount++;
+                triggerLatencySum += latency;
+                triggerLatencyMax = Math.max(triggerLatencyMax, latency);
+            }
+            Log.i(TAG, "Motion trigger latency " + latency + " ms (avg " + getAverageTriggerLatency()
+                    + " ms, max " + getMaxTriggerLatency() + " ms)");
+
+            takePicture();
+            if (current >= maxRepeats) {
+                stopCapture();
+
+                for (ProgressListener l: listener) {
+                    l.captureFinished();
+                }
+            }
+        } finally {
+            triggerPending = false;
+        }
+    }
+
+    /**
+     * Meters each liveview frame and schedules a picture when the scene changes.
+     */
+    private class MotionFrameListener implements LiveviewMultiplexer.FrameListener {
+        private final JpegDcDecoder decoder = new JpegDcDecoder();
+        private final LuminanceMap map = new LuminanceMap();
+        private final MotionDetector detector = new MotionDetector();
+
+        @Override
+        public void onFrame(LiveviewFrame frame) {
+            try {
+                decoder.decode(frame.getJpegData(), map);
+            } catch (IOException e) {
+                Log.w(TAG, "Skipping liveview frame: " + e.getMessage());
+                return;
+            }
+            if (!detector.update(map)) {
+                return;
+            }
+
+            final long detectedAt = frame.getReceivedAt();
+            final long now = System.nanoTime() / 1000000L;
+            if (triggerPending || (lastTriggerAt != 0 && now - lastTriggerAt < period * 1000L)) {
+                return;
+            }
+            triggerPending = true;
+            lastTriggerAt = now;
+            Log.d(TAG, "Motion detected, changed " + detector.getChangedFraction());
+
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    takeMotionPicture(detectedAt);
+                }
+            });
+        }
+
+        @Override
+        public void onStreamClosed(IOException cause) {
+            if (cause != null && mode == Mode.CAPTURING && captureType == CaptureType.MOTION) {
+                Log.e(TAG, "Liveview lost", cause);
+                cancelCapture();
+            }
+        }
+    }
+
     public class LocalBinder extends Binder {
         public TimelapseService getService() {
             return TimelapseService.this;
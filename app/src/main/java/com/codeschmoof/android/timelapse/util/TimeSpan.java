@@ -10,16 +10,13 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import com.google.common.math.LongMath;
+
 import java.io.Serializable;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.math.RoundingMode;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Immutable, arbitrary-precision signed durations.  This class can be used to represent any
@@ -67,13 +64,84 @@ public abstract class TimeSpan implements Comparable<TimeSpan>, Serializable {
      * @throws IllegalArgumentException if the input is not parsable
      */
     public static TimeSpan parse(CharSequence input) {
-        Matcher matcher = PARSE_PATTERN.matcher(input);
-        checkArgument(matcher.matches(), "Invalid time span: %s", input);
-        BigDecimal duration = new BigDecimal(matcher.group(1));
-        String unitString = matcher.group(3);
-        TimeUnit unit = TIME_UNIT_STRINGS.get(unitString);
-        checkArgument(unit != null, "Unrecognized time unit: %s", unitString);
-        return of(duration, unit);
+        int length = input.length();
+        // A space can only separate the number from the unit.
+        int space = -1;
+        for (int i = 0; i < length; i++) {
+            char c = input.charAt(i);
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\u000b' || c == '\f' || c == '\r') {
+                checkArgument(c == ' ' && space == -1, "Invalid time span: %s", input);
+                space = i;
+            }
+        }
+
+        // Longest number: [-+]?[0-9]*(\.[0-9]+)?([eE][-+]?[0-9]+)?
+        int i = 0;
+        if (i < length && (input.charAt(i) == '-' || input.charAt(i) == '+')) {
+            i++;
+        }
+        int integerStart = i;
+        i = skipDigits(input, i, length);
+        int integerEnd = i;
+        int fractionDigits = 0;
+        if (i + 1 < length && input.charAt(i) == '.' && isDigit(input.charAt(i + 1))) {
+            i = skipDigits(input, i + 1, length);
+            fractionDigits = i - integerEnd - 1;
+        }
+        checkArgument(integerEnd > integerStart || fractionDigits > 0,
+                "Invalid time span: %s", input);
+        int mantissaEnd = i;
+        int exponentDigits = 0;
+        if (i + 1 < length && (input.charAt(i) == 'e' || input.charAt(i) == 'E')) {
+            int j = i + 1;
+            if (input.charAt(j) == '-' || input.charAt(j) == '+') {
+                j++;
+            }
+            int exponentEnd = skipDigits(input, j, length);
+            if (exponentEnd > j) {
+                exponentDigits = exponentEnd - j;
+                i = exponentEnd;
+            }
+        }
+
+        // The unit needs at least one character.  If the number takes all of them, the last
+        // shorter number is used like the regular expression this replaced would do.
+        int numberEnd = i;
+        if (space != -1) {
+            checkArgument(numberEnd == space && space + 1 < length, "Invalid time span: %s", input);
+        } else if (numberEnd == length) {
+            if (exponentDigits > 1 || exponentDigits == 0 && (fractionDigits > 1
+                    || fractionDigits == 0 && integerEnd - integerStart > 1)) {
+                numberEnd--;
+            } else if (exponentDigits == 1) {
+                numberEnd = mantissaEnd;
+            } else {
+                checkArgument(fractionDigits == 1 && integerEnd > integerStart,
+                        "Invalid time span: %s", input);
+                numberEnd = integerEnd;
+            }
+        }
+
+        BigDecimal decimalDuration = null;
+        long duration = 0;
+        if (numberEnd == integerEnd && integerEnd - integerStart <= MAX_LONG_POWER_OF_TEN) {
+            for (int k = integerStart; k < integerEnd; k++) {
+                duration = duration * 10 + (input.charAt(k) - '0');
+            }
+            if (integerStart > 0 && input.charAt(0) == '-') {
+                duration = -duration;
+            }
+        } else {
+            decimalDuration = new BigDecimal(input.subSequence(0, numberEnd).toString());
+        }
+
+        int unitStart = (space != -1) ? space + 1 : numberEnd;
+        TimeUnit unit = parseUnit(input, unitStart, length);
+        if (unit == null) {
+            throw new IllegalArgumentException(
+                    "Unrecognized time unit: " + input.subSequence(unitStart, length));
+        }
+        return (decimalDuration == null) ? of(duration, unit) : of(decimalDuration, unit);
     }
 
     /**
@@ -412,11 +480,39 @@ public abstract class TimeSpan implements Comparable<TimeSpan>, Serializable {
         }
 
         @Override public TimeSpan dividedBy(long divisor, int scale, RoundingMode roundingMode) {
+            checkNotNull(roundingMode);
+            if (scale == 0) {
+                return dividedBy(divisor, roundingMode);
+            }
+            if (scale >= -MAX_LONG_POWER_OF_TEN && scale <= MAX_LONG_POWER_OF_TEN) {
+                long powerOfTen = LongMath.pow(10, Math.abs(scale));
+                long limit = Long.MAX_VALUE / powerOfTen;
+                if (scale < 0) {
+                    // Round to a multiple of 10^-scale nanoseconds.
+                    if (divisor <= limit && divisor >= -limit) {
+                        long quotient = LongMath.divide(nanos, divisor * powerOfTen, roundingMode);
+                        if (quotient <= limit && quotient >= -limit) {
+                            return ofNanos(quotient * powerOfTen);
+                        }
+                    }
+                } else if (nanos <= limit && nanos >= -limit) {
+                    // Divide in units of 10^-scale nanoseconds.
+                    long quotient = LongMath.divide(nanos * powerOfTen, divisor, roundingMode);
+                    if (quotient % powerOfTen == 0) {
+                        return ofNanos(quotient / powerOfTen);
+                    }
+                    return ofNanos(BigDecimal.valueOf(quotient, scale));
+                }
+            }
             return ofNanos(toNanos().divide(BigDecimal.valueOf(divisor), scale, roundingMode));
         }
 
         @Override public TimeSpan dividedBy(long divisor, RoundingMode roundingMode) {
-            return ofNanos(toNanos().divide(BigDecimal.valueOf(divisor), 0, roundingMode));
+            checkNotNull(roundingMode);
+            if (divisor == -1) {
+                return negated();
+            }
+            return ofNanos(LongMath.divide(nanos, divisor, roundingMode));
         }
 
         @Override public boolean equals(Object object) {
@@ -469,13 +565,11 @@ public abstract class TimeSpan implements Comparable<TimeSpan>, Serializable {
         }
 
         @Override public TimeSpan times(long multiplicand) {
-            if ((!(nanos == Long.MIN_VALUE && multiplicand == -1))
-                    && (multiplicand == 0
-                    || (nanos <= (Long.MAX_VALUE / multiplicand)
-                    && nanos >= (Long.MIN_VALUE / multiplicand)))) {
-                return ofNanos(nanos * multiplicand);
+            try {
+                return ofNanos(LongMath.checkedMultiply(nanos, multiplicand));
+            } catch (ArithmeticException e) {
+                return ofNanos(toNanos().multiply(BigDecimal.valueOf(multiplicand)));
             }
-            return ofNanos(toNanos().multiply(BigDecimal.valueOf(multiplicand)));
         }
 
         @Override public long to(TimeUnit unit) {
@@ -488,7 +582,8 @@ public abstract class TimeSpan implements Comparable<TimeSpan>, Serializable {
         }
 
         @Override public long to(TimeUnit unit, RoundingMode roundingMode) {
-            return saturatedCast(to(unit, 0, roundingMode));
+            checkNotNull(roundingMode);
+            return LongMath.divide(nanos, unit.toNanos(1), roundingMode);
         }
 
         @Override BigDecimal toNanos() {
@@ -607,55 +702,138 @@ public abstract class TimeSpan implements Comparable<TimeSpan>, Serializable {
 
     // Miscellaneous private static utilities
 
-    private static final Pattern PARSE_PATTERN =
-            Pattern.compile("^([-+]?[0-9]*\\.?[0-9]+([eE][-+]?[0-9]+)?) ?(\\S+)$");
-
-    private static final Map<String, TimeUnit> TIME_UNIT_STRINGS;
-
-    static {
-        Map<String, TimeUnit> strings = new HashMap<String, TimeUnit>();
-        strings.put("ns", NANOSECONDS);
-        strings.put("nsec", NANOSECONDS);
-        strings.put("nanos", NANOSECONDS);
-        strings.put("nanosecond", NANOSECONDS);
-        strings.put("nanoseconds", NANOSECONDS);
-        strings.put("NANOSECONDS", NANOSECONDS);
-        strings.put("\u03bcs" /* μs */, MICROSECONDS);
-        strings.put("us", MICROSECONDS);
-        strings.put("\u03bcsec" /* μsec */, MICROSECONDS);
-        strings.put("usec", MICROSECONDS);
-        strings.put("micros", MICROSECONDS);
-        strings.put("microsecond", MICROSECONDS);
-        strings.put("microseconds", MICROSECONDS);
-        strings.put("MICROSECONDS", MICROSECONDS);
-        strings.put("ms", MILLISECONDS);
-        strings.put("msec", MILLISECONDS);
-        strings.put("millis", MILLISECONDS);
-        strings.put("millisecond", MILLISECONDS);
-        strings.put("milliseconds", MILLISECONDS);
-        strings.put("MILLISECONDS", MILLISECONDS);
-        strings.put("s", SECONDS);
-        strings.put("sec", SECONDS);
-        strings.put("second", SECONDS);
-        strings.put("seconds", SECONDS);
-        strings.put("SECONDS", SECONDS);
-        strings.put("m", MINUTES);
-        strings.put("min", MINUTES);
-        strings.put("minute", MINUTES);
-        strings.put("minutes", MINUTES);
-        strings.put("MINUTES", MINUTES);
-        strings.put("h", HOURS);
-        strings.put("hr", HOURS);
-        strings.put("hour", HOURS);
-        strings.put("hours", HOURS);
-        strings.put("HOURS", HOURS);
-        strings.put("d", DAYS);
-        strings.put("day", DAYS);
-        strings.put("days", DAYS);
-        strings.put("DAYS", DAYS);
-        TIME_UNIT_STRINGS = Collections.unmodifiableMap(strings);
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int skipDigits(CharSequence input, int start, int end) {
+        int i = start;
+        while (i < end && isDigit(input.charAt(i))) {
+            i++;
+        }
+        return i;
     }
 
+    /**
+     * Returns the time unit named by {@code input[start, end)}, or {@code null}.  See
+     * {@link #parse(CharSequence)} for the names.
+     */
+    private static TimeUnit parseUnit(CharSequence input, int start, int end) {
+        switch (end - start) {
+            case 1:
+                switch (input.charAt(start)) {
+                    case 's':
+                        return SECONDS;
+                    case 'm':
+                        return MINUTES;
+                    case 'h':
+                        return HOURS;
+                    case 'd':
+                        return DAYS;
+                    default:
+                        return null;
+                }
+            case 2:
+                if (input.charAt(start + 1) == 's') {
+                    switch (input.charAt(start)) {
+                        case 'n':
+                            return NANOSECONDS;
+                        case '\u03bc': // μ
+                        case 'u':
+                            return MICROSECONDS;
+                        case 'm':
+                            return MILLISECONDS;
+                        default:
+                            return null;
+                    }
+                }
+                return regionEquals(input, start, "hr") ? HOURS : null;
+            case 3:
+                if (regionEquals(input, start, "sec")) {
+                    return SECONDS;
+                }
+                if (regionEquals(input, start, "min")) {
+                    return MINUTES;
+                }
+                return regionEquals(input, start, "day") ? DAYS : null;
+            case 4:
+                if (regionEquals(input, start + 1, "sec")) {
+                    switch (input.charAt(start)) {
+                        case 'n':
+                            return NANOSECONDS;
+                        case '\u03bc': // μ
+                        case 'u':
+                            return MICROSECONDS;
+                        case 'm':
+                            return MILLISECONDS;
+                        default:
+                            return null;
+                    }
+                }
+                if (regionEquals(input, start, "hour")) {
+                    return HOURS;
+                }
+                if (regionEquals(input, start, "days") || regionEquals(input, start, "DAYS")) {
+                    return DAYS;
+                }
+                return null;
+            case 5:
+                if (regionEquals(input, start, "nanos")) {
+                    return NANOSECONDS;
+                }
+                return regionEquals(input, start, "hours") || regionEquals(input, start, "HOURS")
+                        ? HOURS : null;
+            case 6:
+                if (regionEquals(input, start, "micros")) {
+                    return MICROSECONDS;
+                }
+                if (regionEquals(input, start, "millis")) {
+                    return MILLISECONDS;
+                }
+                if (regionEquals(input, start, "second")) {
+                    return SECONDS;
+                }
+                return regionEquals(input, start, "minute") ? MINUTES : null;
+            case 7:
+                if (regionEquals(input, start, "seconds") || regionEquals(input, start, "SECONDS")) {
+                    return SECONDS;
+                }
+                return regionEquals(input, start, "minutes") || regionEquals(input, start, "MINUTES")
+                        ? MINUTES : null;
+            case 10:
+                return regionEquals(input, start, "nanosecond") ? NANOSECONDS : null;
+            case 11:
+                if (regionEquals(input, start, "nanoseconds")
+                        || regionEquals(input, start, "NANOSECONDS")) {
+                    return NANOSECONDS;
+                }
+                if (regionEquals(input, start, "microsecond")) {
+                    return MICROSECONDS;
+                }
+                return regionEquals(input, start, "millisecond") ? MILLISECONDS : null;
+            case 12:
+                if (regionEquals(input, start, "microseconds")
+                        || regionEquals(input, start, "MICROSECONDS")) {
+                    return MICROSECONDS;
+                }
+                return regionEquals(input, start, "milliseconds")
+                        || regionEquals(input, start, "MILLISECONDS") ? MILLISECONDS : null;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean regionEquals(CharSequence input, int start, String expected) {
+        for (int i = 0; i < expected.length(); i++) {
+            if (input.charAt(start + i) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final int MAX_LONG_POWER_OF_TEN = 18;
+
     private static final BigDecimal MIN_LONG = BigDecimal.valueOf(Long.MIN_VALUE);
     private static final BigDecimal MAX_LONG = BigDecimal.valueOf(Long.MAX_VALUE);
 
@@ -0,0 +1,92 @@
+package com.codeschmoof.android.timelapse.benchmark;
+
+import com.codeschmoof.android.timelapse.liveview.JpegDcDecoder;
+import com.codeschmoof.android.timelapse.liveview.LuminanceMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Compares DC-only luminance metering with a full JPEG decode of a liveview
+ * sized frame.
+ * <p/>
+ * Uses the JPEG file given by the system property {@code liveview.jpeg} if
+ * set, otherwise a synthetic 640x480 frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JpegDcDecoderBenchmark {
+
+    private byte[] mJpeg;
+    private final JpegDcDecoder mDecoder = new JpegDcDecoder();
+    private final LuminanceMap mMap = new LuminanceMap();
+
+    @Setup
+    public void setUp() throws IOException {
+        String path = System.getProperty("liveview.jpeg");
+        mJpeg = path != null ? readFile(new File(path)) : syntheticFrame(640, 480);
+    }
+
+    @Benchmark
+    public double dcDecode() throws IOException {
+        mDecoder.decode(mJpeg, mMap);
+        return mMap.getMean();
+    }
+
+    @Benchmark
+    public double fullDecode() throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(mJpeg));
+        // touch the result so the decode is not optimized away
+        return image.getRGB(image.getWidth() / 2, image.getHeight() / 2);
+    }
+
+    static byte[] syntheticFrame(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int g = (x * 255 / width + random.nextInt(32)) & 0xFF;
+                image.setRGB(x, y, (Math.min(255, g + 32) << 16) | (g << 8)
+                        | (255 - g));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+}
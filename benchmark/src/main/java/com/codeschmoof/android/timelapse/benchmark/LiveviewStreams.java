@@ -0,0 +1,111 @@
+package com.codeschmoof.android.timelapse.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Liveview byte streams in the camera's Packet format for benchmarks.
+ */
+final class LiveviewStreams {
+
+    static final int COMMON_HEADER_SIZE = 8;
+    static final int PAYLOAD_HEADER_SIZE = 128;
+
+    private LiveviewStreams() {
+    }
+
+    /**
+     * Builds a stream of JPEG Packets with random payload bytes.
+     *
+     * @param packets number of Packets
+     * @param jpegSize payload size of each Packet
+     * @param paddingSize padding size of each Packet
+     * @return the Packets back to back
+     */
+    static byte[] synthetic(int packets, int jpegSize, int paddingSize) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Random random = new Random(42);
+        byte[] jpeg = new byte[jpegSize];
+        random.nextBytes(jpeg);
+        for (int i = 0; i < packets; i++) {
+            writePacket(out, 0x01, i, 33L * i, jpeg, paddingSize);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes one Packet.
+     */
+    static void writePacket(ByteArrayOutputStream out, int payloadType,
+            int sequenceNumber, long timeStamp, byte[] data, int paddingSize) {
+        out.write(0xFF);
+        out.write(payloadType);
+        out.write(sequenceNumber >> 8);
+        out.write(sequenceNumber);
+        out.write((int) (timeStamp >> 24));
+        out.write((int) (timeStamp >> 16));
+        out.write((int) (timeStamp >> 8));
+        out.write((int) timeStamp);
+
+        out.write(0x24);
+        out.write(0x35);
+        out.write(0x68);
+        out.write(0x79);
+        out.write(data.length >> 16);
+        out.write(data.length >> 8);
+        out.write(data.length);
+        out.write(paddingSize);
+        for (int i = 8; i < PAYLOAD_HEADER_SIZE; i++) {
+            out.write(0);
+        }
+
+        out.write(data, 0, data.length);
+        for (int i = 0; i < paddingSize; i++) {
+            out.write(0);
+        }
+    }
+
+    /**
+     * Returns the stream given by the system property {@code liveview.stream}
+     * (a raw capture of the liveview HTTP body), or a synthetic one.
+     */
+    static byte[] recordedOrSynthetic(int packets, int jpegSize)
+            throws IOException {
+        String path = System.getProperty("liveview.stream");
+        if (path != null) {
+            return JpegDcDecoderBenchmark.readFile(new File(path));
+        }
+        return synthetic(packets, jpegSize, 0);
+    }
+
+    /**
+     * Endless stream that replays the same bytes over and over, so a slicer
+     * never runs out of data during a measurement.
+     */
+    static final class RepeatingInputStream extends InputStream {
+        private final byte[] mData;
+        private int mPosition;
+
+        RepeatingInputStream(byte[] data) {
+            mData = data;
+        }
+
+        @Override
+        public int read() {
+            int b = mData[mPosition] & 0xFF;
+            mPosition = (mPosition + 1) % mData.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            int count = Math.min(length, mData.length - mPosition);
+            System.arraycopy(mData, mPosition, buffer, offset, count);
+            mPosition = (mPosition + count) % mData.length;
+            return count;
+        }
+    }
+}
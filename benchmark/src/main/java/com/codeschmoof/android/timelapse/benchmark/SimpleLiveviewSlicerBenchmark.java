@@ -0,0 +1,90 @@
+package com.codeschmoof.android.timelapse.benchmark;
+
+import com.codeschmoof.android.timelapse.api.utils.SimpleLiveviewSlicer;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing throughput of {@link SimpleLiveviewSlicer#nextPayload()}.
+ * <p/>
+ * {@link #nextPayload()} reports ns/frame, {@link #throughput(Counters)}
+ * reports frames/s plus bytes/s (the {@code bytes} counter). Run with
+ * {@code -prof gc} to get the allocation rate per frame. The {@code backend}
+ * parameter selects the slicer configuration; add new parser implementations
+ * there so they are measured against the same streams.
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimpleLiveviewSlicerBenchmark {
+
+    /** Bytes consumed, reported by JMH per second. */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Param({"plain", "resync"})
+    public String backend;
+
+    /** JPEG payload size; liveview frames are typically 20 - 40 KB. */
+    @Param({"8192", "32768"})
+    public int jpegSize;
+
+    private SimpleLiveviewSlicer mSlicer;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] stream = LiveviewStreams.recordedOrSynthetic(64, jpegSize);
+        mSlicer = new SimpleLiveviewSlicer();
+        mSlicer.setResyncEnabled("resync".equals(backend));
+        mSlicer.open(new LiveviewStreams.RepeatingInputStream(stream));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mSlicer.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public SimpleLiveviewSlicer.Payload nextPayload() throws IOException {
+        return mSlicer.nextPayload();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public SimpleLiveviewSlicer.Payload throughput(Counters counters)
+            throws IOException {
+        SimpleLiveviewSlicer.Payload payload = mSlicer.nextPayload();
+        counters.bytes += LiveviewStreams.COMMON_HEADER_SIZE
+                + LiveviewStreams.PAYLOAD_HEADER_SIZE + payload.jpegData.length
+                + payload.paddingData.length;
+        return payload;
+    }
+}
@@ -0,0 +1,120 @@
+package com.codeschmoof.android.timelapse.benchmark;
+
+import com.codeschmoof.android.timelapse.api.SsdpMessageParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling of one SSDP search reply: String conversion plus
+ * {@code indexOf}/{@code substring} header lookup against the in-place
+ * {@link SsdpMessageParser}.
+ * <p/>
+ * The replies come from a few cameras and repeat, as during a search, so
+ * almost all of them are duplicates. Run with {@code -prof gc} to compare
+ * the allocation per reply.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SsdpMessageParserBenchmark {
+
+    @Param({"3"})
+    public int cameras;
+
+    private byte[][] mReplies;
+    private int mNext;
+    private final Set<String> mSeenUsns = new HashSet<String>();
+    private final SsdpMessageParser mParser = new SsdpMessageParser();
+    private final SsdpMessageParser.LongHashSet mSeenHashes = new SsdpMessageParser.LongHashSet();
+
+    @Setup
+    public void setUp() {
+        mReplies = new byte[cameras][];
+        for (int i = 0; i < cameras; i++) {
+            mReplies[i] = SsdpMessageParser.ascii(reply(i));
+        }
+    }
+
+    @Benchmark
+    public int stringReply() {
+        byte[] reply = nextReply();
+        String message = new String(reply, 0, reply.length);
+        String usn = findParameterValue(message, "USN");
+        if (mSeenUsns.add(usn)) {
+            String location = findParameterValue(message, "LOCATION");
+            String cacheControl = findParameterValue(message, "CACHE-CONTROL");
+            return location.length() + cacheControl.length();
+        }
+        return 0;
+    }
+
+    @Benchmark
+    public int byteReply() {
+        byte[] reply = nextReply();
+        if (!mParser.parse(reply, 0, reply.length)) {
+            return -1;
+        }
+        if (mSeenHashes.add(mParser.hash(SsdpMessageParser.USN))) {
+            String location = mParser.getString(SsdpMessageParser.LOCATION);
+            return location.length() + mParser.getMaxAge(1800);
+        }
+        return 0;
+    }
+
+    private byte[] nextReply() {
+        byte[] reply = mReplies[mNext];
+        mNext = (mNext + 1) % mReplies.length;
+        return reply;
+    }
+
+    static String reply(int camera) {
+        return "HTTP/1.1 200 OK\r\n"
+                + "CACHE-CONTROL: max-age=1800\r\n"
+                + "EXT: \r\n"
+                + "LOCATION: http://10.0.0." + (camera + 1)
+                + ":64321/DmsRmtDesc.xml\r\n"
+                + "SERVER: UPnP/1.0 SonyImagingDevice/1.0\r\n"
+                + "ST: urn:schemas-sony-com:service:ScalarWebAPI:1\r\n"
+                + "USN: uuid:00000000-0000-0010-8000-" + (100000000000L + camera)
+                + "::urn:schemas-sony-com:service:ScalarWebAPI:1\r\n"
+                + "X-AV-Physical-Unit-Info: pa=\"\"; pl=;\r\n"
+                + "X-AV-Server-Info: av=5.0; hn=\"\"; cn=\"Sony Corporation\";"
+                + " mn=\"DSC-QX10\"; mv=\"1.0\";\r\n\r\n";
+    }
+
+    // The header lookup SimpleSsdpClient used before SsdpMessageParser.
+    private static String findParameterValue(String ssdpMessage,
+            String paramName) {
+        String name = paramName;
+        if (!name.endsWith(":")) {
+            name = name + ":";
+        }
+        int start = ssdpMessage.indexOf(name);
+        int end = ssdpMessage.indexOf("\r\n", start);
+        if (start != -1 && end != -1) {
+            start += name.length();
+            String val = ssdpMessage.substring(start, end);
+            if (val != null) {
+                return val.trim();
+            }
+        }
+        return null;
+    }
+}
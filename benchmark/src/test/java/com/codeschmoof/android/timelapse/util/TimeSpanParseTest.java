@@ -0,0 +1,132 @@
+package com.codeschmoof.android.timelapse.util;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks that the hand-written {@link TimeSpan#parse(CharSequence)} scanner accepts exactly the
+ * grammar of the regular expression it replaced, with the same results and the same exceptions.
+ */
+public class TimeSpanParseTest {
+
+    // The replaced implementation, kept as the reference.
+    private static final Pattern PARSE_PATTERN =
+            Pattern.compile("^([-+]?[0-9]*\\.?[0-9]+([eE][-+]?[0-9]+)?) ?(\\S+)$");
+
+    private static final Map<String, TimeUnit> TIME_UNIT_STRINGS = new HashMap<String, TimeUnit>();
+
+    static {
+        put(NANOSECONDS, "ns", "nsec", "nanos", "nanosecond", "nanoseconds", "NANOSECONDS");
+        put(MICROSECONDS, "\u03bcs", "us", "\u03bcsec", "usec", "micros", "microsecond",
+                "microseconds", "MICROSECONDS");
+        put(MILLISECONDS, "ms", "msec", "millis", "millisecond", "milliseconds", "MILLISECONDS");
+        put(SECONDS, "s", "sec", "second", "seconds", "SECONDS");
+        put(MINUTES, "m", "min", "minute", "minutes", "MINUTES");
+        put(HOURS, "h", "hr", "hour", "hours", "HOURS");
+        put(DAYS, "d", "day", "days", "DAYS");
+    }
+
+    private static void put(TimeUnit unit, String... names) {
+        for (String name : names) {
+            TIME_UNIT_STRINGS.put(name, unit);
+        }
+    }
+
+    private static TimeSpan referenceParse(CharSequence input) {
+        Matcher matcher = PARSE_PATTERN.matcher(input);
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Invalid time span: " + input);
+        }
+        BigDecimal duration = new BigDecimal(matcher.group(1));
+        String unitString = matcher.group(3);
+        TimeUnit unit = TIME_UNIT_STRINGS.get(unitString);
+        if (unit == null) {
+            throw new IllegalArgumentException("Unrecognized time unit: " + unitString);
+        }
+        return TimeSpan.of(duration, unit);
+    }
+
+    // Result or exception of a parser as a comparable string.
+    private static String describe(CharSequence input, boolean reference) {
+        try {
+            TimeSpan result = reference ? referenceParse(input) : TimeSpan.parse(input);
+            return result.getClass().getSimpleName() + " "
+                    + result.to(NANOSECONDS, 40, java.math.RoundingMode.UNNECESSARY)
+                            .toPlainString()
+                    + " " + result.hashCode() + " " + result;
+        } catch (RuntimeException e) {
+            return e.getClass().getName() + ": " + e.getMessage();
+        }
+    }
+
+    private static void assertSameAsReference(CharSequence input) {
+        assertEquals("parse(\"" + input + "\")", describe(input, true), describe(input, false));
+    }
+
+    @Test public void edgeCases() {
+        List<String> inputs = Arrays.asList(
+                "", " ", "s", "5", "10", "10s", "+5s", "-0s", "007ms", ".5s", "+.5s", "5.s", "1.e5s",
+                "1e5", "1e55", "1.5", "1.55", ".5", "+.5", "1e+s", "1E2h", "1e-3 ms", "0.5ns",
+                "1 s", "1  s", "1 ", " 1s", "1s ", "1\ts", "1\ns", "1\u000bs", "1\fs", "1\rs",
+                "1 s", "1 s s", "1.5.s", "--1s", "+-1s", "1e5e5s",
+                "999999999999999999s", "9999999999999999999s", "9223372036854775807ns",
+                "9223372036854775808ns", "-9223372036854775808ns", "-9223372036854775809ns",
+                "106751d", "106752d", "-106752 days", "1e9999999999s", "1e99999999999",
+                "3 \u03bcsec", "2\u03bcs", "1 Ms", "1 mS", "1hrs", "1 \u03bc");
+        for (String input : inputs) {
+            assertSameAsReference(input);
+        }
+    }
+
+    @Test public void allUnits() {
+        String[] numbers = {"1", "-2", "3.25", "4e3", "+0.5e-2", "007", "12345678901234567890"};
+        for (String unit : TIME_UNIT_STRINGS.keySet()) {
+            for (String number : numbers) {
+                assertSameAsReference(number + unit);
+                assertSameAsReference(number + " " + unit);
+                assertSameAsReference(number + unit + "x");
+                assertSameAsReference(number + unit.substring(1));
+            }
+        }
+    }
+
+    @Test public void randomInputs() {
+        String alphabet = "0123456789..+-eE sm\t\u03bc";
+        List<String> units = new ArrayList<String>(TIME_UNIT_STRINGS.keySet());
+        units.addAll(Arrays.asList("x", "Ms", "hrs", "e5", "\u03bc"));
+        Random random = new Random(42);
+        for (int i = 0; i < 50000; i++) {
+            StringBuilder input = new StringBuilder();
+            int length = random.nextInt(9);
+            for (int k = 0; k < length; k++) {
+                input.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            if (random.nextBoolean()) {
+                if (random.nextInt(3) == 0) {
+                    input.append(' ');
+                }
+                input.append(units.get(random.nextInt(units.size())));
+            }
+            assertSameAsReference(input);
+        }
+    }
+}